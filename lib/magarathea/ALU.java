@@ -9,11 +9,13 @@ public class ALU {
 	@ReadWrite(id=0xA00002, name="temp") public int temp;
 	
 	@Write(id=0x000010, name="add")
+	@Intrinsic(field="result", operation=Intrinsic.Operation.ADD, operand="operand")
 	public void add(int value) {
 		result = operand + value;
 	}
 	
 	@Write(id=0x000012, name="sub")
+	@Intrinsic(field="result", operation=Intrinsic.Operation.SUBTRACT, operand="operand")
 	public void subtract(int value) {
 		result = operand - value;
 	}
@@ -24,11 +26,13 @@ public class ALU {
 	}
 	
 	@Write(id=0x000013, name="lshift")
+	@Intrinsic(field="result", operation=Intrinsic.Operation.LSHIFT, operand="operand")
 	public void lshift(int amount) {
 		result = operand << amount;
 	}
 	
 	@Write(id=0x000014, name="rshift")
+	@Intrinsic(field="result", operation=Intrinsic.Operation.RSHIFT, operand="operand")
 	public void rshift(int amount) {
 		result = operand >>> amount;
 	}
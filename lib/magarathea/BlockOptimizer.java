@@ -0,0 +1,234 @@
+package magarathea;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import magarathea.anno.Intrinsic;
+
+/**
+ * Constant propagation and dead-store elimination over the moves of a
+ * single block, run before any bytecode is emitted.
+ * 
+ * Module fields are treated as registers. A field only changes when a
+ * move stores to it, when an Intrinsic port of its module stores to it,
+ * or when any other method of its own module is called. Method calls
+ * are assumed to read and change any field of their own module and
+ * nothing else; they are never removed or reordered.
+ */
+class BlockOptimizer {
+	private BlockOptimizer() { }
+	
+	public static int fold(Intrinsic.Operation operation, int operand, int value) {
+		switch (operation) {
+		case ADD:      return operand + value;
+		case SUBTRACT: return operand - value;
+		case AND:      return operand & value;
+		case OR:       return operand | value;
+		case XOR:      return operand ^ value;
+		case LSHIFT:   return operand << value;
+		case RSHIFT:   return operand >>> value;
+		default:       return value;
+		}
+	}
+	
+	/**
+	 * Optimises the moves of the block [start, end) in place.
+	 */
+	public static void optimize(ArrayList<Move> moves, int start, int end) {
+		optimize(moves, backEdgeTarget(moves, start, end));
+	}
+	
+	/**
+	 * Optimises moves in place, given the index of the only instruction
+	 * other than the first that a branch may jump to without leaving, or
+	 * -1 if there is none.
+	 */
+	public static void optimize(ArrayList<Move> moves, int target) {
+		propagate(moves, target);
+		eliminate(moves);
+	}
+	
+	/**
+	 * Returns the index of the instruction the block [start, end) branches
+	 * back to at its end, or -1 if it does not.
+	 */
+	public static int backEdgeTarget(ArrayList<Move> moves, int start, int end) {
+		Move last = moves.get(moves.size() - 1);
+		
+		if (last.isBranch() && last.isLiteral() && last.value >= start && last.value < end
+		    && (last.value - start) % 8 == 0) {
+			return (last.value - start) / 8;
+		} else {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Forward pass: works out which values are known, folds intrinsics
+	 * on them and marks stores of a value a field already holds as dead.
+	 * Nothing is known on entry, nor at the target of the block's own
+	 * back-edge.
+	 */
+	private static void propagate(ArrayList<Move> moves, int target) {
+		HashMap<Field, Integer> fields = new HashMap<Field, Integer>();
+		boolean conditionKnown = false;
+		int condition = 0;
+		
+		for (int i = 0; i < moves.size(); i++) {
+			Move move = moves.get(i);
+			
+			if (i == target) {
+				fields.clear();
+				conditionKnown = false;
+			}
+			
+			if (move.lhs != null) {
+				if (move.lhs.isField()) {
+					Integer value = fields.get(move.lhs.field);
+					
+					if (value != null) {
+						move.known = true;
+						move.value = value;
+					}
+				} else {
+					forget(fields, move.lhs.method.getDeclaringClass());
+				}
+			}
+			
+			if (move.isBranch()) {
+				move.conditionKnown = conditionKnown;
+				move.condition = condition;
+			} else if (move.isNonNeg()) {
+				conditionKnown = move.known;
+				condition = move.value & (1 << 31);
+			} else if (move.isZero()) {
+				conditionKnown = move.known;
+				condition = move.value;
+			} else if (move.rhs.isField()) {
+				store(fields, move, move.rhs.field);
+			} else if (move.rhs.isIntrinsic()) {
+				OpcodeCollection.Output rhs = move.rhs;
+				Integer operand = fields.get(rhs.operand);
+				
+				if (rhs.operation == Intrinsic.Operation.COPY)
+					operand = 0; // unused.
+				
+				if (move.known && operand != null) {
+					move.value = fold(rhs.operation, operand, move.value);
+					move.folded = rhs.target;
+					
+					store(fields, move, rhs.target);
+				} else {
+					fields.remove(rhs.target);
+				}
+			} else {
+				forget(fields, move.rhs.method.getDeclaringClass());
+			}
+		}
+	}
+	
+	private static void store(HashMap<Field, Integer> fields, Move move, Field field) {
+		if (move.known) {
+			Integer current = fields.get(field);
+			
+			if (current != null && current == move.value) {
+				move.dead = true;
+			} else {
+				fields.put(field, move.value);
+			}
+		} else {
+			fields.remove(field);
+		}
+	}
+	
+	private static void forget(HashMap<Field, Integer> fields, Class<?> module) {
+		Iterator<Field> it = fields.keySet().iterator();
+		
+		while (it.hasNext()) {
+			if (it.next().getDeclaringClass() == module) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Backward pass: marks stores that are overwritten before anything
+	 * reads them as dead. Every field is live wherever the block may be
+	 * left: at its end, at its branch, and after any call that may
+	 * invalidate it.
+	 */
+	private static void eliminate(ArrayList<Move> moves) {
+		HashSet<Field> universe = new HashSet<Field>();
+		
+		for (Move move : moves) {
+			if (move.lhs != null && move.lhs.isField())
+				universe.add(move.lhs.field);
+			if (move.rhs != null && move.rhs.isField())
+				universe.add(move.rhs.field);
+			if (move.rhs != null && move.rhs.isIntrinsic()) {
+				universe.add(move.rhs.target);
+				universe.add(move.rhs.operand);
+			}
+		}
+		
+		HashSet<Field> live = new HashSet<Field>(universe);
+		
+		for (int i = moves.size() - 1; i >= 0; i--) {
+			Move move = moves.get(i);
+			
+			if (move.dead) {
+				// a redundant store; it reads nothing, being a known value.
+				continue;
+			}
+			
+			if (move.isJump()) {
+				if (move.isBranch())
+					live.addAll(universe);
+			} else if (move.folded != null || move.rhs.isField()) {
+				Field stored = (move.folded != null) ? move.folded : move.rhs.field;
+				
+				if (!live.contains(stored))
+					move.dead = true;
+				
+				live.remove(stored);
+			} else if (move.rhs.isIntrinsic()) {
+				if (!live.contains(move.rhs.target)) {
+					move.dead = true;
+				} else {
+					live.remove(move.rhs.target);
+					
+					if (move.rhs.operation != Intrinsic.Operation.COPY)
+						live.add(move.rhs.operand);
+				}
+			} else {
+				Class<?> module = move.rhs.method.getDeclaringClass();
+				
+				if (RuntimeCompiler.reachesRAM(module)) {
+					live.addAll(universe);
+				} else {
+					addFieldsOf(live, universe, module);
+				}
+			}
+			
+			if (move.known || move.lhs == null) {
+				// nothing is read.
+			} else if (move.lhs.isField()) {
+				if (!move.dead)
+					live.add(move.lhs.field);
+			} else {
+				addFieldsOf(live, universe, move.lhs.method.getDeclaringClass());
+			}
+		}
+	}
+	
+	private static void addFieldsOf(HashSet<Field> live, HashSet<Field> universe, Class<?> module) {
+		for (Field field : universe) {
+			if (field.getDeclaringClass() == module) {
+				live.add(field);
+			}
+		}
+	}
+}
@@ -0,0 +1,527 @@
+package magarathea;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The basic blocks of a single machine, keyed by the guest address each
+ * one starts at. A block is found the first time execution reaches it and
+ * is run by the Interpreter until it has executed
+ * <code>compileThreshold</code> times, after which it is compiled. The
+ * cost of compiling therefore follows the code that is actually hot,
+ * rather than the size of RAM. Blocks are split at the leaders of the
+ * ControlFlowGraph of the program loaded, so that they start where they
+ * are entered even before execution gets there.
+ * 
+ * RAM is tracked in pages of 2^PAGE_SHIFT bytes. Writes to a page that no
+ * known block lives in cost a single array lookup; writes to one that
+ * does drop the blocks overlapping the written bytes, along with their
+ * compiled segments, and they are found again the next time they are
+ * reached.
+ * 
+ * With <code>compilerThreads</code> set, hot blocks are compiled on a pool
+ * of background threads from a copy of their bytes, and keep being
+ * interpreted meanwhile. The finished segment is swapped in by the thread
+ * running the machine, the next time it looks the block up, and only if
+ * the block has not been dropped or recompiled in the meantime; nothing
+ * else in the cache is ever touched by another thread.
+ * 
+ * A block whose compilation throws, on whichever thread, is reported and
+ * left to the Interpreter from then on.
+ * 
+ * Loops that run through several blocks are compiled once more as a
+ * trace. Each backward jump the dispatcher makes to a compiled block
+ * counts towards <code>traceThreshold</code>; the count is kept in the
+ * segment, so that nothing is looked up until it gets there. The next
+ * time execution reaches that block after that, the blocks it runs until
+ * it gets back there are recorded and compiled into a single segment,
+ * which replaces the first block's. A trace is thrown away along with any
+ * of its blocks.
+ * 
+ * With <code>codeCacheDirectory</code> set, every compiled block without
+ * instrumented instructions is also saved to a SegmentStore, and a block
+ * found there is loaded the first time it is reached instead of being
+ * interpreted and compiled again.
+ */
+class CodeCache {
+	public static final int PAGE_SHIFT = 12;
+	public static final int MAX_TRACE_LENGTH = 16;
+	
+	public static class Block {
+		public final int start, end;
+		public int executions;
+		public JITMemorySegment segment;
+		public Future<JITMemorySegment> compilation; // while compiling in the background.
+		public boolean failed; // compiling it threw; it is only ever interpreted.
+		
+		public boolean traced; // until the segment is discarded.
+		public ArrayList<Block> trace; // the blocks of the trace starting here.
+		public final ArrayList<Block> heads = new ArrayList<Block>(); // the traces running through here.
+		
+		public Block(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+		
+		public boolean overlaps(int from, int to) {
+			return start < to && end > from;
+		}
+	}
+	
+	private StaticComputer computer;
+	private OpcodeCollection collect;
+	private RuntimeCompiler.Options options;
+	private HashMap<Integer, Block> blocks;
+	private HashSet<Integer> leaders;
+	private MachineContext context;
+	private int[] livePages;
+	private HashMap<Integer, ArrayList<Block>> pageBlocks;
+	private SegmentStore store;
+	private ExecutorService compilers;
+	private AtomicLong compilationTime;
+	private ArrayList<Block> recording;
+	private int previous;
+	
+	public CodeCache(StaticComputer cmp, OpcodeCollection coll, MachineContext ctx, RuntimeCompiler.Options opts) {
+		computer = cmp;
+		collect = coll;
+		context = ctx;
+		options = opts;
+		blocks = new HashMap<Integer, Block>();
+		leaders = new HashSet<Integer>();
+		livePages = new int[(cmp.getLengthOfRAM() + (1 << PAGE_SHIFT) - 1) >>> PAGE_SHIFT];
+		pageBlocks = new HashMap<Integer, ArrayList<Block>>();
+		compilationTime = new AtomicLong();
+		
+		leaders.addAll(new ControlFlowGraph(coll, cmp.randomAccessMemory, 0).getLeaders());
+		
+		if (opts.compilerThreads > 0) {
+			compilers = Executors.newFixedThreadPool(opts.compilerThreads, new CompilerThreadFactory());
+		}
+		
+		if (opts.codeCacheDirectory != null) {
+			store = new SegmentStore(opts.codeCacheDirectory, coll, opts);
+		}
+	}
+	
+	/**
+	 * Returns the block starting at <code>offset</code> and counts one more
+	 * execution of it. The block's segment is filled in once it has become
+	 * hot enough to compile.
+	 */
+	public Block lookup(int offset) {
+		Block block = blocks.get(offset);
+		
+		if (block == null) {
+			block = scan(offset);
+			blocks.put(offset, block);
+			track(block);
+			
+			if (store != null && instrumentation(block).isEmpty()) {
+				block.segment = load(block);
+			}
+		}
+		
+		if (block.compilation != null) {
+			poll(block);
+		} else if (block.segment == null && !block.failed && ++block.executions >= options.compileThreshold) {
+			start(block, compilation(block));
+		}
+		
+		return block;
+	}
+	
+	/**
+	 * Called by the dispatcher with every address it goes on to run from,
+	 * and the segment it runs there, or null if it interprets the block.
+	 */
+	public void reached(int offset, JITMemorySegment segment) {
+		if (recording != null) {
+			record(offset);
+		} else if (segment != null && offset <= previous && ++segment.backEdges >= options.traceThreshold) {
+			backEdges(offset, segment);
+		}
+		
+		previous = offset;
+	}
+	
+	/**
+	 * Called once a segment has been jumped back to often enough. Starts
+	 * recording a trace from its block, or checks on the trace being
+	 * compiled; a segment whose block is already traced, or is not to be,
+	 * stops counting.
+	 */
+	private void backEdges(int offset, JITMemorySegment segment) {
+		Block block = blocks.get(offset);
+		
+		segment.backEdges = 0;
+		
+		if (block != null && block.compilation != null) {
+			poll(block);
+		} else if (block != null && block.segment == segment && !block.traced && !block.failed
+		           && options.traceThreshold > 0) {
+			recording = new ArrayList<Block>();
+			recording.add(block);
+		} else {
+			segment.backEdges = Integer.MIN_VALUE;
+		}
+	}
+	
+	private void record(int offset) {
+		Block head = recording.get(0);
+		Block block = blocks.get(offset);
+		
+		if (offset == head.start) {
+			head.traced = true;
+			
+			if (recording.size() > 1) {
+				// a loop within a single block never leaves its segment.
+				head.trace = recording;
+				
+				for (Block piece : recording) {
+					piece.heads.add(head);
+				}
+				
+				start(head, traceCompilation(recording));
+			}
+			
+			recording = null;
+		} else if (block == null || recording.contains(block) || recording.size() == MAX_TRACE_LENGTH) {
+			// an inner loop, or one too long; try again later.
+			recording = null;
+		} else {
+			recording.add(block);
+		}
+	}
+	
+	private void start(Block block, Callable<JITMemorySegment> job) {
+		if (compilers == null) {
+			install(block, finish(block, job));
+		} else {
+			block.compilation = compilers.submit(job);
+		}
+	}
+	
+	private void poll(Block block) {
+		if (block.compilation.isDone()) {
+			install(block, finish(block, block.compilation));
+			block.compilation = null;
+		}
+	}
+	
+	/**
+	 * Makes <code>segment</code> the one run for the block, unless it is
+	 * null for a trace that could not be compiled. A segment it replaces is
+	 * invalidated, so that links to it are dropped.
+	 */
+	private void install(Block block, JITMemorySegment segment) {
+		if (segment != null) {
+			if (block.segment != null) {
+				block.segment.invalidate();
+			}
+			
+			block.segment = segment;
+		}
+	}
+	
+	/**
+	 * Stops the compiler threads; compilations still queued are abandoned.
+	 */
+	public void shutdown() {
+		if (compilers != null) {
+			compilers.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Called after the guest writes <code>length</code> bytes at
+	 * <code>offset</code>.
+	 */
+	public void written(int offset, int length) {
+		int lastPage = (offset + length - 1) >>> PAGE_SHIFT;
+		
+		for (int page = offset >>> PAGE_SHIFT; page <= lastPage; page++) {
+			if (livePages[page] != 0) {
+				invalidate(page, offset, offset + length);
+			}
+		}
+	}
+	
+	/**
+	 * Throws away the compiled code of the block containing
+	 * <code>offset</code>, if any, so that it is compiled again the next
+	 * time it is reached.
+	 */
+	public void recompile(int offset) {
+		ArrayList<Block> backed = pageBlocks.get(offset >>> PAGE_SHIFT);
+		
+		if (backed != null) {
+			for (Block block : backed) {
+				if (block.overlaps(offset, offset + 1)) {
+					discardSegment(block);
+				}
+			}
+		}
+	}
+	
+	public void recompileAll() {
+		for (Block block : blocks.values()) {
+			discardSegment(block);
+		}
+	}
+	
+	private void discardSegment(Block block) {
+		for (Block head : new ArrayList<Block>(block.heads)) {
+			if (head != block) {
+				discardSegment(head);
+			}
+		}
+		
+		if (block.trace != null) {
+			for (Block piece : block.trace) {
+				piece.heads.remove(block);
+			}
+			
+			block.trace = null;
+		}
+		
+		block.traced = false;
+		
+		if (block.segment != null) {
+			block.segment.invalidate();
+			block.segment = null;
+		}
+		
+		if (block.compilation != null) {
+			block.compilation.cancel(false);
+			block.compilation = null;
+		}
+	}
+	
+	/**
+	 * Lists the instructions of a block that call breakpoint before they run.
+	 */
+	private HashSet<Integer> instrumentation(Block block) {
+		HashSet<Integer> instrumented = new HashSet<Integer>();
+		
+		for (int offset = block.start; offset < block.end; offset += 8) {
+			if (computer.isInstrumented(offset)) {
+				instrumented.add(offset);
+			}
+		}
+		
+		return instrumented;
+	}
+	
+	private void invalidate(int page, int start, int end) {
+		for (Block block : new ArrayList<Block>(pageBlocks.get(page))) {
+			if (block.overlaps(start, end)) {
+				drop(block);
+			}
+		}
+	}
+	
+	private void track(Block block) {
+		int lastPage = (block.end - 1) >>> PAGE_SHIFT;
+		
+		for (int page = block.start >>> PAGE_SHIFT; page <= lastPage; page++) {
+			ArrayList<Block> backed = pageBlocks.get(page);
+			
+			if (backed == null) {
+				backed = new ArrayList<Block>();
+				pageBlocks.put(page, backed);
+			}
+			
+			backed.add(block);
+			livePages[page]++;
+		}
+	}
+	
+	private void drop(Block block) {
+		int lastPage = (block.end - 1) >>> PAGE_SHIFT;
+		
+		for (int page = block.start >>> PAGE_SHIFT; page <= lastPage; page++) {
+			ArrayList<Block> backed = pageBlocks.get(page);
+			
+			backed.remove(block);
+			livePages[page]--;
+			
+			if (backed.isEmpty()) {
+				pageBlocks.remove(page);
+			}
+		}
+		
+		blocks.remove(block.start);
+		discardSegment(block);
+		
+		if (recording != null && recording.contains(block)) {
+			recording = null;
+		}
+	}
+	
+	private Block scan(int start) {
+		int end = RuntimeCompiler.findBlockEnd(collect, computer.randomAccessMemory, start, leaders);
+		
+		if (end == start) {
+			throw new RuntimeException("uncompiled region encountered at " + start);
+		}
+		
+		int target = RuntimeCompiler.staticBranchTarget(
+			computer.readFromRAM(end - 8), computer.readFromRAM(end - 4));
+		
+		if (target != -1) {
+			leaders.add(target);
+		}
+		
+		return new Block(start, end);
+	}
+	
+	/**
+	 * Prepares the compilation of a block as a job that depends on nothing
+	 * but a copy of the block's bytes, and so may run on any thread.
+	 */
+	private Callable<JITMemorySegment> compilation(final Block block) {
+		final byte[] code = computer.copyOfRAM(block.start, block.end);
+		final HashSet<Integer> instrumented = instrumentation(block);
+		
+		return new Callable<JITMemorySegment>() {
+			public JITMemorySegment call() {
+				long compileStart = System.nanoTime();
+				
+				byte[] classFile = RuntimeCompiler.compile(collect, code, block.start, block.end,
+					options, instrumented);
+				
+				if (store != null && instrumented.isEmpty()) {
+					store.save(code, block.start, block.end, classFile);
+				}
+				
+				JITMemorySegment segment = define(classFile);
+				
+				compilationTime.addAndGet(System.nanoTime() - compileStart);
+				
+				return segment;
+			}
+		};
+	}
+	
+	/**
+	 * Prepares the compilation of a trace through the given blocks, like
+	 * that of a single one.
+	 */
+	private Callable<JITMemorySegment> traceCompilation(ArrayList<Block> pieces) {
+		final byte[][] code = new byte[pieces.size()][];
+		final int[] starts = new int[pieces.size()];
+		final int[] ends = new int[pieces.size()];
+		final HashSet<Integer> instrumented = new HashSet<Integer>();
+		
+		for (int k = 0; k < pieces.size(); k++) {
+			Block piece = pieces.get(k);
+			
+			code[k] = computer.copyOfRAM(piece.start, piece.end);
+			starts[k] = piece.start;
+			ends[k] = piece.end;
+			instrumented.addAll(instrumentation(piece));
+		}
+		
+		return new Callable<JITMemorySegment>() {
+			public JITMemorySegment call() {
+				long compileStart = System.nanoTime();
+				
+				byte[] classFile = RuntimeCompiler.compileTrace(collect, code, starts, ends, options, instrumented);
+				JITMemorySegment segment = (classFile == null) ? null : define(classFile);
+				
+				compilationTime.addAndGet(System.nanoTime() - compileStart);
+				
+				return segment;
+			}
+		};
+	}
+	
+	private JITMemorySegment finish(Block block, Callable<JITMemorySegment> job) {
+		try {
+			return job.call();
+		} catch (Exception e) {
+			return failed(block, e);
+		}
+	}
+	
+	private JITMemorySegment finish(Block block, Future<JITMemorySegment> compilation) {
+		try {
+			return compilation.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			return failed(block, e.getCause());
+		}
+	}
+	
+	/**
+	 * Reports a compilation that threw. The block goes on being
+	 * interpreted, and is never queued again.
+	 */
+	private JITMemorySegment failed(Block block, Throwable cause) {
+		System.err.println("Could not compile the block at " + block.start + ": " + cause);
+		block.failed = true;
+		
+		return null;
+	}
+	
+	private JITMemorySegment load(Block block) {
+		long loadStart = System.nanoTime();
+		
+		byte[] code = computer.copyOfRAM(block.start, block.end);
+		byte[] classFile = store.load(code, block.start, block.end);
+		JITMemorySegment segment = null;
+		
+		if (classFile != null) {
+			try {
+				segment = define(classFile);
+			} catch (RuntimeException e) {
+				// treated as a miss; the block is compiled afresh.
+				store.discard(code, block.start, block.end);
+			}
+		}
+		
+		compilationTime.addAndGet(System.nanoTime() - loadStart);
+		
+		return segment;
+	}
+	
+	private JITMemorySegment define(byte[] classFile) {
+		JITMemorySegment segment = RuntimeCompiler.define(classFile);
+		
+		segment.setComputer(computer);
+		segment.setContext(context);
+		
+		return segment;
+	}
+	
+	public long getCompilationTime() {
+		return compilationTime.get();
+	}
+	
+	/**
+	 * Compiler threads are daemons, so that a machine shutting down never
+	 * waits for them.
+	 */
+	private static class CompilerThreadFactory implements ThreadFactory {
+		private static final AtomicInteger count = new AtomicInteger();
+		
+		public Thread newThread(Runnable job) {
+			Thread thread = new Thread(job, "magarathea-compiler-" + count.incrementAndGet());
+			
+			thread.setDaemon(true);
+			
+			return thread;
+		}
+	}
+}
@@ -16,5 +16,11 @@ public interface Computer {
 	public void stop();
 	public void step();
 	public int getProgramCounter();
-	void breakpoint(int position);
+	
+	public void attachDebugger();
+	public void detachDebugger();
+	public void addBreakpoint(int position);
+	public void removeBreakpoint(int position);
+	public boolean isInstrumented(int position);
+	boolean breakpoint(int position);
 }
\ No newline at end of file
@@ -0,0 +1,244 @@
+package magarathea;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The basic blocks of a program image that can be reached from its entry
+ * point, and the edges between them, found without running anything.
+ * 
+ * Blocks are split the way findBlockEnd splits them, but at every leader
+ * up front: the entry, each constant jump target and each instruction
+ * after a jmp.branch. A branch's target is constant when its left-hand
+ * side is a literal or a field the BlockOptimizer knows the value of, and
+ * it is only followed the ways the condition flag allows. Code reached
+ * only through a computed jump is not found; isComplete tells whether
+ * there is any.
+ */
+class ControlFlowGraph {
+	public static class Node {
+		public final int start, end;
+		
+		/**
+		 * The constant target of the jmp.branch ending the block, or -1 if
+		 * the block does not end in one or its target is computed.
+		 */
+		public int target = -1;
+		public boolean computed;
+		
+		/**
+		 * The jmp.zero or jmp.nonneg in this block that sets the condition
+		 * the branch tests, or -1 if it is set before the block is entered.
+		 */
+		public int condition = -1;
+		
+		/**
+		 * Which ways the block may be left: by taking its branch, or by
+		 * running on into the instruction at <code>end</code>.
+		 */
+		public boolean taken, fallsThrough;
+		
+		public final ArrayList<Node> successors = new ArrayList<Node>();
+		
+		public Node(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+		
+		public boolean includesOffset(int offset) {
+			return start <= offset && end > offset;
+		}
+	}
+	
+	private OpcodeCollection collect;
+	private PagedRAM code;
+	private TreeSet<Integer> leaders;
+	private TreeMap<Integer, Node> blocks;
+	private boolean complete;
+	
+	public ControlFlowGraph(OpcodeCollection coll, PagedRAM image, int entry) {
+		collect = coll;
+		code = image;
+		leaders = new TreeSet<Integer>();
+		blocks = new TreeMap<Integer, Node>();
+		complete = true;
+		
+		findLeaders(entry);
+		findBlocks(entry);
+	}
+	
+	/**
+	 * Every address that starts a block; the dispatcher would otherwise
+	 * only learn of them as execution reaches them.
+	 */
+	public Set<Integer> getLeaders() {
+		return leaders;
+	}
+	
+	/**
+	 * The reachable blocks, in address order.
+	 */
+	public Collection<Node> getBlocks() {
+		return blocks.values();
+	}
+	
+	public Node getBlock(int start) {
+		return blocks.get(start);
+	}
+	
+	/**
+	 * Returns the reachable block containing <code>offset</code>, or null
+	 * if none does.
+	 */
+	public Node blockContaining(int offset) {
+		Map.Entry<Integer, Node> entry = blocks.floorEntry(offset);
+		
+		if (entry != null && entry.getValue().includesOffset(offset)) {
+			return entry.getValue();
+		} else {
+			return null;
+		}
+	}
+	
+	/**
+	 * Whether any reachable block has bytes in [start, end).
+	 */
+	public boolean overlaps(int start, int end) {
+		Map.Entry<Integer, Node> entry = blocks.lowerEntry(end);
+		
+		return entry != null && entry.getValue().end > start;
+	}
+	
+	/**
+	 * Whether no reachable block ends in a computed jump, so that every
+	 * instruction that can run is in the graph.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+	
+	/**
+	 * First pass: collects leaders, following every branch both ways, as
+	 * the condition flag can only be known once blocks are.
+	 */
+	private void findLeaders(int entry) {
+		HashSet<Integer> seen = new HashSet<Integer>();
+		ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+		
+		leaders.add(entry);
+		work.add(entry);
+		
+		while (!work.isEmpty()) {
+			int start = work.remove();
+			
+			if (!seen.add(start))
+				continue;
+			
+			int end = RuntimeCompiler.findBlockEnd(collect, code, start, Collections.<Integer>emptySet());
+			
+			if (end == start)
+				continue;
+			
+			ArrayList<Move> moves = decode(start, end);
+			int target = constantTarget(moves);
+			
+			for (int next : new int[] { target, end }) {
+				if (next >= 0 && next < code.capacity()) {
+					leaders.add(next);
+					work.add(next);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Second pass: splits the code at the leaders and links up the blocks
+	 * execution can actually reach.
+	 */
+	private void findBlocks(int entry) {
+		ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+		
+		work.add(entry);
+		
+		while (!work.isEmpty()) {
+			int start = work.remove();
+			
+			if (blocks.containsKey(start))
+				continue;
+			
+			int end = RuntimeCompiler.findBlockEnd(collect, code, start, leaders);
+			
+			if (end == start)
+				continue;
+			
+			Node node = new Node(start, end);
+			ArrayList<Move> moves = decode(start, end);
+			Move last = moves.get(moves.size() - 1);
+			
+			blocks.put(start, node);
+			leaders.add(start); // a block cut at MAX_BLOCK_LENGTH starts a new one.
+			
+			if (last.isBranch()) {
+				node.target = constantTarget(moves);
+				node.computed = (node.target == -1);
+				node.taken = !last.conditionKnown || last.condition == 0;
+				node.fallsThrough = !last.conditionKnown || last.condition != 0;
+				
+				for (Move move : moves) {
+					if (move.isZero() || move.isNonNeg())
+						node.condition = move.offset;
+				}
+				
+				if (node.computed && node.taken)
+					complete = false;
+			} else {
+				node.fallsThrough = true;
+			}
+			
+			if (node.taken && node.target != -1)
+				work.add(node.target);
+			if (node.fallsThrough)
+				work.add(end);
+		}
+		
+		for (Node node : blocks.values()) {
+			if (node.taken && blocks.containsKey(node.target))
+				node.successors.add(blocks.get(node.target));
+			if (node.fallsThrough && blocks.containsKey(node.end) && !(node.taken && node.target == node.end))
+				node.successors.add(blocks.get(node.end));
+		}
+	}
+	
+	/**
+	 * Decodes and optimises the block [start, end), which tells what the
+	 * condition flag and the branch target are where it ends.
+	 */
+	private ArrayList<Move> decode(int start, int end) {
+		ArrayList<Move> moves = new ArrayList<Move>();
+		
+		for (int i = start; i < end; i += 8) {
+			moves.add(new Move(collect, i, RuntimeCompiler.fetch(code, i), RuntimeCompiler.fetch(code, i + 4)));
+		}
+		
+		BlockOptimizer.optimize(moves, start, end);
+		
+		return moves;
+	}
+	
+	private int constantTarget(ArrayList<Move> moves) {
+		Move last = moves.get(moves.size() - 1);
+		
+		if (last.isBranch() && last.known && last.value >= 0 && last.value < code.capacity()) {
+			return last.value;
+		} else {
+			return -1;
+		}
+	}
+}
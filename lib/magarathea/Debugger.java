@@ -6,8 +6,12 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JLabel;
 import javax.swing.JList;
+import javax.swing.BorderFactory;
+import javax.swing.border.Border;
 import javax.swing.ListModel;
 import javax.swing.ListCellRenderer;
+import javax.swing.SwingWorker;
+import javax.swing.JComponent;
 import javax.swing.event.ListDataListener;
 import javax.swing.event.ListDataEvent;
 import java.awt.Font;
@@ -16,13 +20,34 @@ import java.awt.GridLayout;
 import java.awt.BorderLayout;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Formatter;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Attaches to a Computer for as long as its window is open. Execution
+ * stops at the first instruction and at every breakpoint; double-clicking
+ * an instruction toggles one there.
+ * 
+ * A line is drawn above the first instruction of each basic block, and
+ * code the ControlFlowGraph cannot reach from the entry point is dimmed.
+ * The graph is built on a background thread, and again only when the
+ * guest writes to code it contains.
+ */
 public class Debugger {
 	Computer computer;
+	Set<Integer> breakpoints;
+	volatile ControlFlowGraph graph; // null until RAM has been analysed.
+	JComponent view; // repainted whenever the graph is replaced.
+	
+	private boolean analysing, again; // these are guarded by this.
+	private int writtenFrom, writtenTo; // written while analysing.
 	
 	private class LazyListModel implements ListModel, MemoryListener {
 		Set<ListDataListener> listeners;
@@ -65,6 +90,8 @@ public class Debugger {
 		}
 		
 		public void segmentWrittenTo(Computer c, int offset, int value) {
+			written(offset);
+			
 			ListDataEvent evt = new ListDataEvent(this, ListDataEvent.CONTENTS_CHANGED, offset, offset);
 			
 			for (ListDataListener l : listeners) {
@@ -79,6 +106,11 @@ public class Debugger {
 		JPanel labelPanel;
 		Color selectedColor;
 		Color notSelectedColor;
+		Color addressColor;
+		Color breakpointColor;
+		Color codeColor;
+		Color unreachableColor;
+		Border blockBorder;
 		
 		public HexRenderer() {
 			JPanel leftSide = new JPanel();
@@ -92,8 +124,14 @@ public class Debugger {
 			description.setFont(new Font("Monaco", Font.PLAIN, 14));
 			description.setForeground(new Color(100, 100, 100));
 			
+			addressColor = new Color(150, 150, 150);
+			breakpointColor = new Color(220, 60, 60);
+			codeColor = new Color(230, 230, 230);
+			unreachableColor = new Color(110, 110, 110);
+			blockBorder = BorderFactory.createMatteBorder(1, 0, 0, 0, new Color(90, 90, 130));
+			
 			column0 = new JLabel();
-			column0.setForeground(new Color(150, 150, 150));
+			column0.setForeground(addressColor);
 			column0.setFont(new Font("Monaco", Font.PLAIN, 14));
 			
 			column1 = makeAndAddLabel();
@@ -118,7 +156,7 @@ public class Debugger {
 		protected JLabel makeAndAddLabel() {
 			JLabel label = new JLabel();
 			label.setFont(new Font("Monaco", Font.PLAIN, 14));
-			label.setForeground(new Color(230, 230, 230));
+			label.setForeground(codeColor);
 			
 			labelPanel.add(label);
 			
@@ -128,6 +166,7 @@ public class Debugger {
 		public HexRenderer getListCellRendererComponent(
 		  JList lst, Object value, int index, boolean isSelected, boolean isFocused) {
 			column0.setText(Integer.toString(index * 4, 16) + "  ");
+			column0.setForeground(breakpoints.contains(index / 2 * 8) ? breakpointColor : addressColor);
 			column1.setText(value.toString().substring(0, 2));
 			column2.setText(value.toString().substring(2, 4));
 			column3.setText(value.toString().substring(4, 6));
@@ -135,6 +174,17 @@ public class Debugger {
 			
 			description.setText(value.toString().substring(9));
 			
+			ControlFlowGraph cfg = graph;
+			int offset = index / 2 * 8;
+			Color color = (cfg == null || cfg.blockContaining(offset) != null) ? codeColor : unreachableColor;
+			
+			column1.setForeground(color);
+			column2.setForeground(color);
+			column3.setForeground(color);
+			column4.setForeground(color);
+			
+			setBorder((index % 2 == 0 && cfg != null && cfg.getBlock(offset) != null) ? blockBorder : null);
+			
 			if (isSelected) {
 				setBackground(selectedColor);
 			} else {
@@ -156,6 +206,19 @@ public class Debugger {
 			instructions.setPrototypeCellValue("ffffffff alu.operandXXXXXX");
 			instructions.setCellRenderer(new HexRenderer());
 			
+			instructions.addMouseListener(new MouseAdapter() {
+				public void mouseClicked(MouseEvent e) {
+					if (e.getClickCount() == 2) {
+						int index = instructions.locationToIndex(e.getPoint());
+						
+						if (index != -1) {
+							toggleBreakpoint(index / 2 * 8);
+							instructions.repaint();
+						}
+					}
+				}
+			});
+			
 			JScrollPane wrapper = new JScrollPane(instructions);
 			wrapper.setBorder(null);
 		
@@ -185,7 +248,7 @@ public class Debugger {
 			
 			computer.addExecutionListener(new ExecutionListener() {
 				public void programCounterChanged(Computer c) {
-					if (c.getProgramCounter() == 0) {
+					if (breakpoints.contains(c.getProgramCounter())) {
 						c.stop();
 					}
 					
@@ -208,8 +271,18 @@ public class Debugger {
 			
 			computer.addMemoryListener(model);
 			
+			view = instructions;
+			analyse();
+			
 			add(buttonsPanel, BorderLayout.NORTH);
 			
+			addWindowListener(new WindowAdapter() {
+				public void windowClosing(WindowEvent e) {
+					computer.detachDebugger();
+					computer.start();
+				}
+			});
+			
 			
 			pack();
 			
@@ -227,9 +300,99 @@ public class Debugger {
 	
 	public Debugger(Computer c) {
 		computer = c;
+		breakpoints = ConcurrentHashMap.newKeySet(); // toggled on the EDT, read by the machine.
+	}
+	
+	/**
+	 * Called after the guest writes the word at <code>offset</code>. Only
+	 * code in the graph can change it; a word written while RAM is being
+	 * analysed is checked against the new graph as well, once it is done.
+	 */
+	synchronized void written(int offset) {
+		ControlFlowGraph cfg = graph;
+		
+		if (analysing) {
+			writtenFrom = Math.min(writtenFrom, offset);
+			writtenTo = Math.max(writtenTo, offset + 4);
+		}
+		
+		if (cfg != null && cfg.overlaps(offset, offset + 4)) {
+			analyse();
+		}
+	}
+	
+	/**
+	 * Builds the graph of a copy of RAM on a background thread, or has it
+	 * built again after the one in progress.
+	 */
+	synchronized void analyse() {
+		if (analysing) {
+			again = true;
+			return;
+		}
+		
+		analysing = true;
+		again = false;
+		writtenFrom = Integer.MAX_VALUE;
+		writtenTo = Integer.MIN_VALUE;
+		
+		new SwingWorker<ControlFlowGraph, Object>() {
+			protected ControlFlowGraph doInBackground() {
+				return analyseRAM();
+			}
+			
+			protected void done() {
+				try {
+					analysed(get());
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+				
+				view.repaint();
+			}
+		}.execute();
+	}
+	
+	private synchronized void analysed(ControlFlowGraph cfg) {
+		graph = cfg;
+		analysing = false;
+		
+		if (again || (writtenFrom < writtenTo && cfg.overlaps(writtenFrom, writtenTo))) {
+			analyse();
+		}
+	}
+	
+	/**
+	 * Analyses a copy of RAM. The copy is made a page at a time, so that it
+	 * only holds the pages that are not zero.
+	 */
+	private ControlFlowGraph analyseRAM() {
+		PagedRAM image = new PagedRAM(computer.getLengthOfRAM(), null);
+		byte[] page = new byte[PagedRAM.PAGE_SIZE];
+		
+		for (int offset = 0; offset < image.capacity(); offset += page.length) {
+			int length = Math.min(page.length, image.capacity() - offset);
+			
+			computer.readSegmentOfRAM(page, 0, offset, length);
+			image.put(offset, page, 0, length);
+		}
+		
+		return new ControlFlowGraph(OpcodeCollection.instance(), image, 0);
+	}
+	
+	public void toggleBreakpoint(int position) {
+		if (breakpoints.remove(position)) {
+			computer.removeBreakpoint(position);
+		} else {
+			breakpoints.add(position);
+			computer.addBreakpoint(position);
+		}
 	}
 	
 	public void runWithGUI() {
+		computer.attachDebugger();
+		toggleBreakpoint(0);
+		
 		DebuggerFrame frm = new DebuggerFrame();
 		frm.setVisible(true);
 		
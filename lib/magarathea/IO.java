@@ -1,11 +1,17 @@
 package magarathea;
 
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import magarathea.anno.*;
 
+/**
+ * Devices are looked up on every access, so they may be added and removed
+ * from any thread while the machine runs; compiled code only ever calls
+ * into this module.
+ */
 @Bus(id=0x14, prefix="io")
 public class IO {
-	private HashMap<Integer, Device> devices;
+	private Map<Integer, Device> devices;
 	
 	public static interface Device {
 		public void write(byte x);
@@ -13,9 +19,9 @@ public class IO {
 		public boolean poll();
 	}
 	
-	public IO(JITMemorySegment seg) {
-		devices = new HashMap<Integer, Device>();
-		seg.getComputer().prepareIOSubsystem(this);
+	public IO(Computer c) {
+		devices = new ConcurrentHashMap<Integer, Device>();
+		c.prepareIOSubsystem(this);
 	}
 	
 	@ReadWrite(id=0x000001, name="port") public int port;
@@ -0,0 +1,100 @@
+package magarathea;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Tier-0 execution: runs a block straight out of RAM, decoding each move
+ * through the OpcodeCollection as it goes. Nothing is generated, so blocks
+ * that only run a handful of times never pay for compilation.
+ * 
+ * Works on the same MachineContext as the compiled segments of the
+ * machine, so a block may switch tiers between two executions.
+ */
+class Interpreter {
+	private Computer computer;
+	private OpcodeCollection collect;
+	private MachineContext context;
+	private RuntimeCompiler.Options options;
+	
+	public Interpreter(Computer cmp, OpcodeCollection coll, MachineContext ctx, RuntimeCompiler.Options opts) {
+		computer = cmp;
+		collect = coll;
+		context = ctx;
+		options = opts;
+	}
+	
+	/**
+	 * Runs the block [start, end) and returns the guest address execution
+	 * continues at, exactly as the compiled segment for it would.
+	 */
+	public int interpret(int start, int end) {
+		try {
+			for (int offset = start; offset < end; offset += 8) {
+				if (computer.isInstrumented(offset) && computer.breakpoint(offset)) {
+					return offset;
+				}
+				
+				int even = computer.readFromRAM(offset);
+				int odd = computer.readFromRAM(offset + 4);
+				int value = read(offset, even);
+				
+				if (odd == 0x90000000) { // jmp.branch
+					if (context.condition == 0)
+						return value;
+				} else if (odd == 0x90000001) { // jmp.nonneg
+					context.condition = value & (1 << 31);
+				} else if (odd == 0x90000002) { // jmp.zero
+					context.condition = value;
+				} else {
+					write(offset, odd, value);
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			} else {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		
+		return end;
+	}
+	
+	private int read(int offset, int even) throws IllegalAccessException, InvocationTargetException {
+		if ((even & 0xff000000) == 0x11000000) {
+			return even & 0x00ffffff;
+		}
+		
+		OpcodeCollection.Output lhs = collect.getLeftHandSide(even);
+		
+		if (lhs == null) {
+			throw new RuntimeException("invalid instruction at " + offset);
+		}
+		
+		Object module = context.getModule(even >>> 24);
+		
+		if (lhs.isField()) {
+			return lhs.field.getInt(module);
+		} else {
+			return (Integer)lhs.method.invoke(module);
+		}
+	}
+	
+	private void write(int offset, int odd, int value) throws IllegalAccessException, InvocationTargetException {
+		OpcodeCollection.Output rhs = collect.getRightHandSide(odd);
+		
+		if (rhs == null) {
+			throw new RuntimeException("invalid instruction at " + offset);
+		}
+		
+		Object module = context.getModule(odd >>> 24);
+		
+		if (rhs.isField()) {
+			rhs.field.setInt(module, value);
+		} else {
+			rhs.method.invoke(module, value);
+		}
+	}
+}
@@ -1,20 +1,17 @@
 package magarathea;
 
 public abstract class JITMemorySegment {
-	private int startOffset, endOffset;
-	private int jumpDestination;
 	private Computer computer;
+	protected MachineContext context;
+	protected boolean invalidated;
+	private int linkedOffset0, linkedOffset1;
+	private JITMemorySegment linked0, linked1;
 	
-	public void setExtents(int start, int end) {
-		startOffset = start;
-		endOffset = end;
-		
-		jumpDestination = -1;
-	}
-	
-	public int getJumpDestination() {
-		return jumpDestination;
-	}
+	/**
+	 * Backward jumps to the segment, counted by CodeCache.reached towards
+	 * a trace; negative once it is not to be traced.
+	 */
+	int backEdges;
 	
 	public void setComputer(Computer cmp) {
 		computer = cmp;
@@ -24,39 +21,77 @@ public abstract class JITMemorySegment {
 		return computer;
 	}
 	
-	public boolean includesOffset(int offset) {
-		return startOffset <= offset && endOffset > offset;
+	/**
+	 * Binds the machine whose modules and condition flag the compiled code
+	 * works on.
+	 */
+	public void setContext(MachineContext ctx) {
+		context = ctx;
 	}
 	
-	protected void breakpoint(int offset) {
-		getComputer().breakpoint(offset);
+	/**
+	 * Marks the segment as stale because the guest overwrote the code it was
+	 * compiled from. A running segment notices after its next call into a
+	 * module that can reach RAM, and leaves.
+	 */
+	public void invalidate() {
+		invalidated = true;
 	}
 	
-	protected void jumpTo(int offset) {
-		jumpDestination = offset;
-		
-		throw JumpException.instance;
+	/**
+	 * Returns the segment this one's exit to <code>offset</code> has been
+	 * linked to, or null if the dispatcher has to look it up. Links to
+	 * segments that have since been invalidated are forgotten.
+	 */
+	public JITMemorySegment getLink(int offset) {
+		if (linked0 != null && linkedOffset0 == offset) {
+			if (linked0.invalidated) {
+				linked0 = null;
+			}
+			
+			return linked0;
+		} else if (linked1 != null && linkedOffset1 == offset) {
+			if (linked1.invalidated) {
+				linked1 = null;
+			}
+			
+			return linked1;
+		} else {
+			return null;
+		}
 	}
 	
-	public void executeSafely(int offset) {
-		boolean done = false;
-		
-		while (!done) {
-			try {
-				evaluate(offset);
-				done = true;
-			} catch (JumpException exc) {	
-				if (jumpDestination < startOffset || jumpDestination >= endOffset)
-					throw exc;
-				
-				int internalOffset = (jumpDestination - startOffset) / 8;
-				
-				offset = internalOffset;
-			}
+	/**
+	 * Links the exit to <code>offset</code> straight to its successor. A
+	 * block has at most two static exits, so two slots cover everything but
+	 * computed jumps, which take over the second slot.
+	 */
+	public void link(int offset, JITMemorySegment successor) {
+		if (linked0 == null || linked0.invalidated) {
+			linkedOffset0 = offset;
+			linked0 = successor;
+		} else {
+			linkedOffset1 = offset;
+			linked1 = successor;
 		}
-		
-		throw new RuntimeException("uncompiled region encountered");
 	}
 	
-	protected abstract void evaluate(int offset);
-}
\ No newline at end of file
+	/**
+	 * Called before an instrumented instruction runs. Returns true if the
+	 * segment has to leave instead of running it.
+	 */
+	public boolean breakpoint(int offset) {
+		return getComputer().breakpoint(offset);
+	}
+	
+	/**
+	 * Runs the segment from its start and returns the guest address
+	 * execution continues at. Every exit, including computed jumps, is an
+	 * ordinary return to the dispatcher.
+	 */
+	public int execute(int offset) {
+		return evaluate(offset);
+	}
+	
+	protected abstract int evaluate(int offset);
+}
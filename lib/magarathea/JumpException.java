@@ -1,7 +0,0 @@
-package magarathea;
-
-public class JumpException extends RuntimeException {
-	private JumpException() { }
-	
-	public static JumpException instance = new JumpException();
-}
\ No newline at end of file
@@ -0,0 +1,76 @@
+package magarathea;
+
+/**
+ * Guest state that outlives any one segment: the module instances a
+ * program talks to and the condition flag set by jmp.nonneg and jmp.zero.
+ * A Computer creates exactly one, and every compiled segment and the
+ * Interpreter work on it, so state survives jumps, tier changes and
+ * recompilation alike.
+ * 
+ * Modules are only instantiated the first time code referring to them
+ * runs. Compiled segments fetch them from here each time they are entered,
+ * so a module replaced by setModule is picked up by the next segment to
+ * run.
+ */
+public class MachineContext {
+	private Computer computer;
+	private Class[] classes;
+	private Object[] modules;
+	
+	/**
+	 * Non-zero when the next jmp.branch should fall through.
+	 */
+	public int condition;
+	
+	/**
+	 * Set, from any thread, to make running code return to the dispatcher
+	 * at its next breakpoint or backward jump; see StaticComputer.
+	 */
+	public volatile boolean interrupted;
+	
+	public MachineContext(Computer c, Class[] moduleClasses) {
+		computer = c;
+		classes = moduleClasses;
+		modules = new Object[moduleClasses.length];
+	}
+	
+	public Computer getComputer() {
+		return computer;
+	}
+	
+	/**
+	 * Returns the instance of the module on bus <code>id</code>, creating it
+	 * on first use. Modules with a constructor taking a Computer are handed
+	 * this context's.
+	 */
+	public Object getModule(int id) {
+		Object module = modules[id];
+		
+		if (module == null) {
+			module = instantiate(classes[id]);
+			modules[id] = module;
+		}
+		
+		return module;
+	}
+	
+	/**
+	 * Replaces the module on bus <code>id</code>. Only the thread running
+	 * the machine may call this; see StaticComputer.replaceModule.
+	 */
+	public void setModule(int id, Object module) {
+		modules[id] = module;
+	}
+	
+	private Object instantiate(Class<?> klass) {
+		try {
+			try {
+				return klass.getConstructor(Computer.class).newInstance(computer);
+			} catch (NoSuchMethodException e) {
+				return klass.getConstructor().newInstance();
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -4,10 +4,10 @@ import magarathea.anno.*;
 
 @Bus(prefix="mem", id=0x13)
 public class Memory {
-	JITMemorySegment segment;
+	Computer computer;
 	
-	public Memory(JITMemorySegment seg) {
-		segment = seg;
+	public Memory(Computer c) {
+		computer = c;
 	}
 	
 	@ReadWrite(id=0x01, name="addr")
@@ -18,12 +18,12 @@ public class Memory {
 	
 	@Write(id=0x03, name="read")
 	public void read(int ptr) {
-		value = segment.getComputer().readFromRAM(ptr);
+		value = computer.readFromRAM(ptr);
 	}
 	
 	@Write(id=0x04, name="write")
 	public void write(int value) {
-		segment.getComputer().writeToRAM(pointer, value);
+		computer.writeToRAM(pointer, value);
 		
 		System.err.printf("RAM: (write, %#08x, %d)\n", pointer, value);
 	}
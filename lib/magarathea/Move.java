@@ -0,0 +1,80 @@
+package magarathea;
+
+import java.lang.reflect.Field;
+
+/**
+ * One decoded instruction of a block, along with what the BlockOptimizer
+ * has learnt about it. The emitter works from these rather than from the
+ * raw words in RAM.
+ */
+class Move {
+	public final int offset, even, odd;
+	
+	/**
+	 * The port read by the left-hand side; null for a literal.
+	 */
+	public final OpcodeCollection.Output lhs;
+	
+	/**
+	 * The port written by the right-hand side; null for a jump.
+	 */
+	public final OpcodeCollection.Output rhs;
+	
+	/**
+	 * Whether the value moved is known at compile time, and if so what it is.
+	 */
+	public boolean known;
+	public int value;
+	
+	/**
+	 * When set, the move has been folded into storing <code>value</code>
+	 * into this field, and the right-hand side is not called.
+	 */
+	public Field folded;
+	
+	/**
+	 * Set when nothing ever observes the value written. Only a left-hand
+	 * side with side effects is still evaluated.
+	 */
+	public boolean dead;
+	
+	/**
+	 * For jmp.branch, whether the condition flag is known when the branch
+	 * is reached, and if so what it is.
+	 */
+	public boolean conditionKnown;
+	public int condition;
+	
+	/**
+	 * For a jmp.branch inside a trace, set when the trace goes on at its
+	 * target rather than at the next instruction.
+	 */
+	public boolean continues;
+	
+	public Move(OpcodeCollection collect, int offset, int even, int odd) {
+		this.offset = offset;
+		this.even = even;
+		this.odd = odd;
+		
+		lhs = isLiteral() ? null : collect.getLeftHandSide(even);
+		rhs = isJump() ? null : collect.getRightHandSide(odd);
+		
+		if (isLiteral()) {
+			known = true;
+			value = even & 0x00ffffff;
+		}
+	}
+	
+	public boolean isLiteral() { return (even & 0xff000000) == 0x11000000; }
+	public boolean isJump()    { return (odd >>> 24) == 0x90; }
+	public boolean isBranch()  { return odd == 0x90000000; }
+	public boolean isNonNeg()  { return odd == 0x90000001; }
+	public boolean isZero()    { return odd == 0x90000002; }
+	
+	/**
+	 * Whether evaluating the left-hand side can have side effects.
+	 */
+	public boolean readHasEffects() {
+		return lhs != null && lhs.isMethod();
+	}
+}
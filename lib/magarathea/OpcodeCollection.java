@@ -1,9 +1,12 @@
 package magarathea;
 
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 import java.lang.reflect.Method;
 import java.lang.reflect.Field;
 import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Modifier;
 
 import magarathea.ALU;
 import magarathea.Sys;
@@ -43,6 +46,17 @@ class OpcodeCollection {
 		public boolean isMethod() {
 			return (method != null);
 		}
+		
+		/**
+		 * For a write port with an Intrinsic, what the method computes: it
+		 * stores <code>operand OP value</code> into <code>target</code>.
+		 */
+		public Field target, operand;
+		public Intrinsic.Operation operation;
+		
+		public boolean isIntrinsic() {
+			return (target != null);
+		}
 	}
 	
 	private static class SegmentTable {
@@ -124,6 +138,48 @@ class OpcodeCollection {
 		return modules;
 	}
 	
+	/**
+	 * Describes which module sits on each bus and what every one of its
+	 * opcodes refers to. Compiled code depends on all of it.
+	 */
+	public String getLayout() {
+		StringBuilder layout = new StringBuilder();
+		
+		for (int id = 0; id < modules.length; id++) {
+			if (modules[id] == null)
+				continue;
+			
+			layout.append(id).append(' ').append(modules[id].getName()).append('\n');
+			
+			describe(layout, "read ", reads[id]);
+			describe(layout, "write ", writes[id]);
+		}
+		
+		return layout.toString();
+	}
+	
+	private static void describe(StringBuilder layout, String kind, SegmentTable table) {
+		TreeMap<Integer, Output> sorted = new TreeMap<Integer, Output>(table.output);
+		
+		if (table.fallback != null) {
+			sorted.put(-1, table.fallback);
+		}
+		
+		for (Map.Entry<Integer, Output> entry : sorted.entrySet()) {
+			Output out = entry.getValue();
+			
+			layout.append(kind).append(entry.getKey()).append(' ').append(out.descriptor).append(' ')
+			      .append(out.isField() ? out.field.toString() : out.method.toString());
+			
+			if (out.isIntrinsic()) {
+				layout.append(' ').append(out.target.getName()).append(" = ").append(out.operand.getName())
+				      .append(' ').append(out.operation);
+			}
+			
+			layout.append('\n');
+		}
+	}
+	
 	public String explainOpcode(int bytecode, boolean previousWasLHS) {
 		if (!previousWasLHS && ((bytecode & 0xff000000) == 0x11000000)) {
 			return "#" + (bytecode & 0x00ffffff);
@@ -207,8 +263,15 @@ class OpcodeCollection {
 			else if (hasReadWrite) { position = rw.id() & 0xffffff | id; label += rw.name(); }
 			else { throw new RuntimeException("assertion failed!"); }
 			
+			Intrinsic in = (Intrinsic)object.getAnnotation(Intrinsic.class);
+			
+			if (in != null && read && write) {
+				throw new OperationException("intrinsic " + label + " must be either read or written.");
+			}
+			
 			if (read) {
-				Output out = new Output(object, label, position);
+				Output out = (in == null) ? new Output(object, label, position) :
+					new Output(readIntrinsic((Method)object, in, label), label, position);
 				
 				if (moduleReads.containsKey(position)) {
 					throw new OperationException("read slot already defined for 0x" +
@@ -227,6 +290,10 @@ class OpcodeCollection {
 			if (write) {
 				Output out = new Output(object, label, position);
 				
+				if (in != null) {
+					writeIntrinsic(out, in, label);
+				}
+				
 				if (moduleWrites.containsKey(position)) {
 					throw new OperationException("write slot already defined for 0x" +
 					                             Integer.toString(position, 16) + " in " + label); // he he he
@@ -243,6 +310,53 @@ class OpcodeCollection {
 		}
 	}
 	
+	/**
+	 * An intrinsic read port returns a field, and so is registered as that
+	 * field.
+	 */
+	private static Field readIntrinsic(Method method, Intrinsic in, String label) {
+		if (method.getReturnType() != int.class || method.getParameterTypes().length != 0
+		    || in.operation() != Intrinsic.Operation.COPY || in.operand().length() != 0) {
+			throw new OperationException("intrinsic read " + label + " must be int m() and return its field.");
+		}
+		
+		return intrinsicField(method.getDeclaringClass(), in.field(), label);
+	}
+	
+	private static void writeIntrinsic(Output out, Intrinsic in, String label) {
+		Class<?> module = out.method.getDeclaringClass();
+		
+		if (out.method.getReturnType() != void.class || out.method.getParameterTypes().length != 1
+		    || out.method.getParameterTypes()[0] != int.class) {
+			throw new OperationException("intrinsic write " + label + " must be void m(int).");
+		}
+		
+		out.target = intrinsicField(module, in.field(), label);
+		out.operand = (in.operand().length() == 0) ? out.target : intrinsicField(module, in.operand(), label);
+		out.operation = in.operation();
+	}
+	
+	/**
+	 * Intrinsics may only use public int fields of their own module, which
+	 * is what compiled code can reach.
+	 */
+	private static Field intrinsicField(Class<?> module, String name, String label) {
+		Field field;
+		
+		try {
+			field = module.getField(name);
+		} catch (NoSuchFieldException e) {
+			throw new OperationException("intrinsic " + label + " refers to no public field \"" + name + "\".");
+		}
+		
+		if (field.getDeclaringClass() != module || field.getType() != int.class
+		    || Modifier.isStatic(field.getModifiers())) {
+			throw new OperationException("intrinsic " + label + " may only use int fields of its module.");
+		}
+		
+		return field;
+	}
+	
 	/**
 	 * not idempotent in failure; will corrupt this instance.
 	 */
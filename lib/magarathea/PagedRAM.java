@@ -0,0 +1,192 @@
+package magarathea;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Guest RAM, kept in pages of 2^PAGE_SHIFT bytes that are only allocated
+ * the first time they are written to. Until then a page reads as the
+ * bytes of the image behind it, if there is one, and as zeroes past its
+ * end; writing zeroes to a page that reads as zero leaves it untouched.
+ * A machine therefore holds only what its program changes, and finding a
+ * page is a shift and an array index. Pages are direct buffers, so the
+ * garbage collector never scans or moves them.
+ * 
+ * Words are big-endian, and may be at any offset, even across pages.
+ */
+class PagedRAM {
+	public static final int PAGE_SHIFT = 12;
+	public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	
+	private static final VarHandle WORDS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	
+	private final int capacity;
+	private final long lastWord; // the highest offset a word fits at; negative if none does.
+	private final ByteBuffer[] pages;
+	private final ByteBuffer image; // null if RAM starts out zeroed.
+	
+	public PagedRAM(int size, ByteBuffer img) {
+		capacity = size;
+		lastWord = size - 4L;
+		pages = new ByteBuffer[(size + PAGE_SIZE - 1) >>> PAGE_SHIFT];
+		image = img;
+	}
+	
+	public int capacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Whether the page at <code>index</code> is untouched and reads as
+	 * zero.
+	 */
+	private boolean blank(int index) {
+		return pages[index] == null && (image == null || index << PAGE_SHIFT >= image.limit());
+	}
+	
+	private ByteBuffer allocate(int index) {
+		int start = index << PAGE_SHIFT;
+		ByteBuffer page = ByteBuffer.allocateDirect(Math.min(PAGE_SIZE, capacity - start));
+		
+		if (image != null && start < image.limit()) {
+			page.put(0, image, start, Math.min(page.capacity(), image.limit() - start));
+		}
+		
+		pages[index] = page; // only once it holds what it replaces.
+		
+		return page;
+	}
+	
+	private void checkBounds(int offset, int length) {
+		if (offset < 0 || length < 0 || offset > capacity - length) {
+			throw outside(offset, length);
+		}
+	}
+	
+	private IndexOutOfBoundsException outside(int offset, int length) {
+		return new IndexOutOfBoundsException("RAM [" + offset + ", " + offset + " + " + length + ") is outside [0, " + capacity + ")");
+	}
+	
+	public int getInt(int offset) {
+		if ((offset & 0xffffffffL) > lastWord) {
+			throw outside(offset, 4);
+		}
+		
+		ByteBuffer page = pages[offset >>> PAGE_SHIFT];
+		int within = offset & (PAGE_SIZE - 1);
+		
+		if (page != null && within <= PAGE_SIZE - 4) {
+			return page.getInt(within);
+		} else {
+			return getIntSlowly(offset, page, within);
+		}
+	}
+	
+	/**
+	 * Reads a word from a page that is not there, or that it does not fit
+	 * in; kept apart so that getInt stays small enough to inline.
+	 */
+	private int getIntSlowly(int offset, ByteBuffer page, int within) {
+		if (page == null && within <= PAGE_SIZE - 4) {
+			if (image == null || offset >= image.limit()) {
+				return 0;
+			} else if (offset <= image.limit() - 4) {
+				return image.getInt(offset);
+			}
+		}
+		
+		byte[] word = new byte[4];
+		
+		get(offset, word, 0, 4);
+		
+		return (int)WORDS.get(word, 0);
+	}
+	
+	public void putInt(int offset, int value) {
+		if ((offset & 0xffffffffL) > lastWord) {
+			throw outside(offset, 4);
+		}
+		
+		ByteBuffer page = pages[offset >>> PAGE_SHIFT];
+		int within = offset & (PAGE_SIZE - 1);
+		
+		if (page != null && within <= PAGE_SIZE - 4) {
+			page.putInt(within, value);
+		} else {
+			byte[] word = new byte[4];
+			
+			WORDS.set(word, 0, value);
+			put(offset, word, 0, 4);
+		}
+	}
+	
+	/**
+	 * Copies the <code>length</code> bytes at <code>offset</code> into
+	 * <code>buffer</code>, from <code>start</code> on.
+	 */
+	public void get(int offset, byte[] buffer, int start, int length) {
+		checkBounds(offset, length);
+		
+		while (length > 0) {
+			int index = offset >>> PAGE_SHIFT;
+			int within = offset & (PAGE_SIZE - 1);
+			int count = Math.min(length, PAGE_SIZE - within);
+			ByteBuffer page = pages[index];
+			
+			if (page != null) {
+				page.get(within, buffer, start, count);
+			} else {
+				int mapped = (image == null) ? 0 : Math.max(0, Math.min(count, image.limit() - offset));
+				
+				if (mapped > 0) {
+					image.get(offset, buffer, start, mapped);
+				}
+				
+				Arrays.fill(buffer, start + mapped, start + count, (byte)0);
+			}
+			
+			offset += count;
+			start += count;
+			length -= count;
+		}
+	}
+	
+	/**
+	 * Copies <code>length</code> bytes of <code>buffer</code>, from
+	 * <code>start</code> on, to <code>offset</code>.
+	 */
+	public void put(int offset, byte[] buffer, int start, int length) {
+		checkBounds(offset, length);
+		
+		while (length > 0) {
+			int index = offset >>> PAGE_SHIFT;
+			int within = offset & (PAGE_SIZE - 1);
+			int count = Math.min(length, PAGE_SIZE - within);
+			ByteBuffer page = pages[index];
+			
+			if (page == null && !(blank(index) && isZero(buffer, start, count))) {
+				page = allocate(index);
+			}
+			
+			if (page != null) {
+				page.put(within, buffer, start, count);
+			}
+			
+			offset += count;
+			start += count;
+			length -= count;
+		}
+	}
+	
+	private static boolean isZero(byte[] buffer, int start, int length) {
+		for (int i = start; i < start + length; i++) {
+			if (buffer[i] != 0)
+				return false;
+		}
+		
+		return true;
+	}
+}
\ No newline at end of file
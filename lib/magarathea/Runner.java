@@ -6,6 +6,8 @@ import javax.swing.event.*;
 import java.awt.*;
 import java.awt.font.*;
 import java.awt.event.*;
+import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.ByteArrayOutputStream;
@@ -117,11 +119,21 @@ public class Runner {
 	}
 	
 	public static void runWithBytecode(byte[] bytecode) {
+		run(new StaticComputer(bytecode));
+	}
+	
+	/**
+	 * Runs the program image in a file, mapping it rather than reading it;
+	 * see StaticComputer.
+	 */
+	public static void runWithImage(File image) throws IOException {
+		run(new StaticComputer(image, new RuntimeCompiler.Options()));
+	}
+	
+	private static void run(StaticComputer c) {
 		System.setProperty("apple.laf.useScreenMenuBar", "true");
 		System.setProperty("com.apple.mrj.application.apple.menu.about.name", "Magarathea");
 		
-		StaticComputer c = new StaticComputer(bytecode);
-		
 		MainWindow win = new MainWindow(c);
 		win.setLocationRelativeTo(null);
 		win.setVisible(true);
@@ -1,24 +1,139 @@
 package magarathea;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 
+import magarathea.anno.Intrinsic;
+
 public class RuntimeCompiler {
 	private RuntimeCompiler() { }
 	
+	/**
+	 * The longest run of instructions compiled into a single segment, kept
+	 * well below the JVM's 64 KB limit on the size of a method.
+	 */
+	public static final int MAX_BLOCK_LENGTH = 1024;
+	
+	/**
+	 * The most bytecode a segment ever has, whatever maxMethodSize says.
+	 * Only goto_w takes a four-byte offset, so every other branch has to
+	 * stay within a method this size.
+	 */
+	public static final int MAX_METHOD_SIZE = 32767;
+	
 	public static class Options {
-		public boolean debuggingMode = true;
+		/**
+		 * Instruments every instruction, whether or not a debugger is
+		 * attached. Otherwise only those a debugger needs are; see
+		 * StaticComputer.
+		 */
+		public boolean debuggingMode = false;
+		
+		/**
+		 * How many times a block is interpreted before it is compiled. Zero
+		 * compiles every block the first time it is reached.
+		 */
+		public int compileThreshold = 500;
+		
+		/**
+		 * Whether blocks go through the BlockOptimizer before being compiled.
+		 */
+		public boolean optimize = true;
+		
+		/**
+		 * Where compiled segments are kept between runs; null keeps them in
+		 * memory only.
+		 */
+		public File codeCacheDirectory = null;
+		
+		/**
+		 * How many threads compile hot blocks in the background. Zero
+		 * compiles them on the thread running the machine, which waits; that
+		 * is the default on a single processor, where a compiler thread
+		 * would only compete with the machine.
+		 */
+		public int compilerThreads = Runtime.getRuntime().availableProcessors() / 2;
+		
+		/**
+		 * The most bytecode a segment may have. A block that would take
+		 * more is compiled only up to the last instruction that fits, and
+		 * the rest becomes a block of its own; HotSpot never compiles
+		 * methods over 8000 bytes. Values over MAX_METHOD_SIZE count as
+		 * MAX_METHOD_SIZE.
+		 */
+		public int maxMethodSize = 8000;
+		
+		/**
+		 * How many backward jumps have to reach a compiled block before
+		 * the loop it starts is recorded and compiled as a trace; zero
+		 * never traces.
+		 */
+		public int traceThreshold = 50;
+		
+		/**
+		 * How many bytes of RAM a machine can address; only the pages it
+		 * writes to are allocated. At most 16 MB, all that a literal can
+		 * address.
+		 */
+		public int sizeOfRAM = 1024 * 1024 * 8;
 	}
 	
-	private static class JITClassLoader extends ClassLoader {
+	/**
+	 * Assembles the class file of a single segment. Besides the bytecode it
+	 * follows the depth of the operand stack, which only ever holds ints at
+	 * a branch, so that it can compute max_stack and write the
+	 * StackMapTable of current class files. Every local is assigned in the
+	 * prologue, before the first branch target, so each frame holds all of
+	 * them.
+	 * 
+	 * The code is written in a single pass. Branches go to Labels, and
+	 * those to a label that is not bound yet are patched once it is.
+	 */
+	private static class JITClassWriter {
+		/**
+		 * A place in the bytecode that branches may refer to before it is
+		 * known.
+		 */
+		public static class Label {
+			private int address = -1;
+			private int stack; // depth of the operand stack on arrival
+			private int[] branches = new int[2]; // those waiting to be patched
+			private int count;
+			
+			public boolean isBound() {
+				return address != -1;
+			}
+			
+			public int getAddress() {
+				return address;
+			}
+		}
+		
 		private ArrayList<byte[]> constantPool;
-		private DataOutputStream bytecode;
-		private ByteArrayOutputStream bytecodeBuffer;
+		private HashMap<ByteBuffer,Integer> constantIndexes;
+		private HashMap<String,Integer> stringIndexes, classIndexes; // the most looked up entries
+		private byte[] bytecode;
+		private int size;
 		private HashMap<String,Integer> fields;
+		private ArrayList<String> localTypes;
 		private int fieldIndex = 2; // #1 is reserved for memory.
+		private int stack, maxStack;
+		private TreeMap<Integer,Integer> frames; // branch target -> stack depth
+		private boolean outOfRange; // a short branch too far to patch
 		
 		public static String encodeObjectType(Class type) {
 			return "L" + type.getName().replaceAll("\\.", "/") + ";";
@@ -29,335 +144,485 @@ public class RuntimeCompiler {
 		public static String encodeVoidType() { return "V"; }
 		public static String encodeMethodType(String output, String args) { return "(" + args + ")" + output; }
 		
-		public String getClassName() { return "__magjit"; }
+		public String getClassName() { return "magarathea/__magjit"; }
 		public boolean isRunningJIT() { return true; }
 		
-		public int getSizeOfBytecode() { return bytecodeBuffer.size(); }
+		public int getSizeOfBytecode() { return size; }
 		
-		public JITClassLoader() {
+		public JITClassWriter() {
 			constantPool = new ArrayList<byte[]>();
-			bytecodeBuffer = new ByteArrayOutputStream();
-			bytecode = new DataOutputStream(bytecodeBuffer);
+			constantIndexes = new HashMap<ByteBuffer,Integer>();
+			stringIndexes = new HashMap<String,Integer>();
+			classIndexes = new HashMap<String,Integer>();
+			bytecode = new byte[1024];
 			fields = new HashMap<String,Integer>();
+			localTypes = new ArrayList<String>();
+			frames = new TreeMap<Integer,Integer>();
 		}
 		
-		public int addLocal(String name) {
+		/**
+		 * Returns the local holding <code>name</code>, allocating one of the
+		 * given type descriptor the first time.
+		 */
+		public int addLocal(String name, String type) {
 			if (fields.containsKey(name)) {
 				return fields.get(name);
 			} else {
 				int index = fieldIndex++;
 				
 				fields.put(name, index);
+				localTypes.add(type);
 				
 				return index;
 			}
 		}
 		
-		public void emitNull() {
-			try {
-				bytecode.writeByte(0x01);
-			} catch (IOException e) { throw new RuntimeException(e); }
+		private void push(int slots) {
+			stack += slots;
+			maxStack = Math.max(maxStack, stack);
 		}
 		
-		public void emitTableSwitch(int defaultAddr, ArrayList<Integer> values, int offsetOffset) {
-			try {
-				int startOffset = bytecodeBuffer.size();
-				int nulls = 0;
-				
-				bytecode.writeByte(0xaa);
-				while (bytecodeBuffer.size() % 4 != 0) { bytecode.writeByte(0); nulls++; }
-				
-				if (values.size() == 0) {
-					bytecode.writeInt(0);
-				} else {
-					bytecode.writeInt(12 + 4 * values.size() + nulls + 1); // startOffset);
+		private void pop(int slots) {
+			stack -= slots;
+		}
+		
+		private static int slotsOf(char type) {
+			switch (type) {
+			case 'V': return 0;
+			case 'J': case 'D': return 2;
+			default: return 1;
+			}
+		}
+		
+		private static int argumentSlotsOf(String methodType) {
+			String arguments = methodType.substring(1, methodType.indexOf(')'));
+			int slots = 0;
+			
+			// objects, then arrays, are references of a single slot.
+			arguments = arguments.replaceAll("L[^;]*;", "L").replaceAll("\\[+.", "L");
+			
+			for (char type : arguments.toCharArray()) {
+				slots += slotsOf(type);
+			}
+			
+			return slots;
+		}
+		
+		private void write(int value) {
+			if (size == bytecode.length) {
+				bytecode = Arrays.copyOf(bytecode, size * 2);
+			}
+			
+			bytecode[size++] = (byte)value;
+		}
+		
+		private void writeShort(int value) {
+			write(value >>> 8);
+			write(value);
+		}
+		
+		private void writeInt(int value) {
+			writeShort(value >>> 16);
+			writeShort(value);
+		}
+		
+		/**
+		 * Writes the offset of the branch at <code>from</code>, whose opcode
+		 * is already there; goto_w takes four bytes, every other branch two.
+		 * Segments are kept to MAX_METHOD_SIZE so that two are enough; code
+		 * with a branch out of range anyway is not turned into a class.
+		 */
+		private void patch(int from, int offset) {
+			if (bytecode[from] == (byte)0xc8) {
+				for (int i = 4; i >= 1; i--, offset >>= 8) {
+					bytecode[from + i] = (byte)offset;
 				}
-				bytecode.writeInt(0);
-				bytecode.writeInt(values.size() - 1);
-				// bytecode.writeInt(42); // startOffset);
-				
-				
-				for (int offset : values) {
-					// System.err.println("TAB: " + (offset + offsetOffset));
-					bytecode.writeInt(12 + 4 * values.size() + nulls + 1 + offset);
-					// bytecode.writeInt(offset + offsetOffset);
+			} else {
+				outOfRange |= (offset != (short)offset);
+				bytecode[from + 1] = (byte)(offset >>> 8);
+				bytecode[from + 2] = (byte)offset;
+			}
+		}
+		
+		private void branch(int opcode, Label label) {
+			int from = size;
+			
+			write(opcode);
+			
+			if (opcode == 0xc8) {
+				writeInt(0);
+			} else {
+				writeShort(0);
+			}
+			
+			if (label.isBound()) {
+				patch(from, label.address - from);
+			} else {
+				if (label.count == label.branches.length) {
+					label.branches = Arrays.copyOf(label.branches, label.count * 2);
 				}
-			} catch (IOException e) { throw new RuntimeException(e); }
+				
+				label.branches[label.count++] = from;
+				label.stack = stack;
+			}
 		}
 		
-		public void emitArrayAccess() {
-			try {
-				bytecode.writeByte(0x33);
-			} catch (IOException e) { throw new RuntimeException(e); }
+		/**
+		 * Makes <code>label</code> refer to the code written next, and
+		 * patches the branches to it written so far.
+		 */
+		public void bind(Label label) {
+			label.address = size;
+			
+			if (label.count > 0) {
+				stack = label.stack;
+			}
+			
+			for (int i = 0; i < label.count; i++) {
+				patch(label.branches[i], size - label.branches[i]);
+			}
+			
+			label.count = 0;
+			frames.put(size, stack);
 		}
 		
-		public void emitArrayPut() {
-			try {
-				bytecode.writeByte(0x54);
-			} catch (IOException e) { throw new RuntimeException(e); }
+		/**
+		 * Called after a goto or return. The code that follows, if any, is
+		 * either bound to a label that is branched to or never reached; the
+		 * latter still needs a frame, and gets an empty stack.
+		 */
+		private void endOfFlow() {
+			stack = 0;
+			frames.put(size, stack);
 		}
 		
-		public void emitNewArray(int componentType, int length) {
-			try {
-				emitConstantInt(length);
-				
-				bytecode.writeByte(0xbc);
-				bytecode.writeByte((byte)componentType);
-			} catch (IOException e) { throw new RuntimeException(e); }
+		public void emitGoto(Label label) {
+			branch(0xc8, label);
+			
+			endOfFlow();
 		}
 		
-		public void emitGoto(int address) {
-			try {
-				bytecode.writeByte(0xc8);
-				bytecode.writeInt(address);
-			} catch (IOException e) { throw new RuntimeException(e); }
+		public void emitGotoIf(Label label) {
+			pop(1);
+			branch(0x99, label);
 		}
 		
-		public void emitGotoIf(int address) {
-			try {
-				bytecode.writeByte(0x99);
-				bytecode.writeShort((short)address);
-			} catch (IOException e) { throw new RuntimeException(e); }
+		public void emitGotoIfNot(Label label) {
+			pop(1);
+			branch(0x9a, label);
 		}
 		
-		public void emitNewObject(String className) {
-			try {
-				short classIndex = constantizeClass(className);
-				short constructorIndex = constantizeMethod(classIndex, "<init>", "()V");
-				bytecode.writeByte(0xbb);
-				bytecode.writeShort(classIndex);
-				
-				bytecode.writeByte(0x59);
-				
-				bytecode.writeByte(0xb7);
-				bytecode.writeShort(constructorIndex);
-			} catch (IOException e) { throw new RuntimeException(e); }
+		public void emitIntegerReturn() {
+			pop(1);
+			write(0xac);
+			
+			endOfFlow();
 		}
 		
-		public void emitNewObjectSpec(String className, String argumentsSpecifier) {
-			try {
-				short classIndex = constantizeClass(className);
-				short constructorIndex = constantizeMethod(classIndex, "<init>", argumentsSpecifier);
-				bytecode.writeByte(0xbb);
-				bytecode.writeShort(classIndex);
-				
-				bytecode.writeByte(0x59);
-				
-				emitLocal(0);
-				
-				bytecode.writeByte(0xb7);
-				bytecode.writeShort(constructorIndex);
-			} catch (IOException e) { throw new RuntimeException(e); }
+		public void emitPop() {
+			pop(1);
+			write(0x57);
 		}
 		
-		public void emitConstantInt(int value) {
-			try {
-				short index = constantizeInt(value);
-				bytecode.writeByte(0x13);
-				bytecode.writeShort(index);
-			} catch (IOException e) { throw new RuntimeException(e); }
+		public void emitCheckCast(String className) {
+			int classIndex = constantizeClass(className);
+			
+			write(0xc0);
+			writeShort(classIndex);
 		}
 		
-		public void emitConstant(String value) {
-			try {
-				short stringIndex = constantizeString(value);
-				
-				bytecode.writeByte(0x13);
-				bytecode.writeShort(stringIndex);
-			} catch (IOException e) { throw new RuntimeException(e); }
+		public void emitConstantInt(int value) {
+			int index = constantizeInt(value);
+			
+			push(1);
+			write(0x13);
+			writeShort(index);
 		}
 		
 		public void emitMethodCall(String className, String method, String declaration) {
-			try {
-				short classIndex = constantizeClass(className);
-				short methodIndex = constantizeMethod(classIndex, method, declaration);
-				
-				bytecode.writeByte(0xb6);
-				bytecode.writeShort(methodIndex);
-			} catch (IOException e) { throw new RuntimeException(e); }
+			int classIndex = constantizeClass(className);
+			int methodIndex = constantizeMethod(classIndex, method, declaration);
+			
+			pop(1 + argumentSlotsOf(declaration)); // with the receiver
+			push(slotsOf(declaration.charAt(declaration.indexOf(')') + 1)));
+			
+			write(0xb6);
+			writeShort(methodIndex);
 		}
 		
 		public void emitFieldAccess(boolean isstatic, String className, String field, String declaration) {
-			try {
-				short classIndex = constantizeClass(className);
-				short methodIndex = constantizeField(classIndex, field, declaration);
-				
-				bytecode.writeByte(isstatic ? 0xb2 : 0xb4);
-				bytecode.writeShort(methodIndex);
-			} catch (IOException e) { throw new RuntimeException(e); }
+			int classIndex = constantizeClass(className);
+			int methodIndex = constantizeField(classIndex, field, declaration);
+			
+			pop(isstatic ? 0 : 1);
+			push(slotsOf(declaration.charAt(0)));
+			
+			write(isstatic ? 0xb2 : 0xb4);
+			writeShort(methodIndex);
 		}
 		
 		public void emitFieldPut(boolean isstatic, String className, String field, String declaration) {
-			try {
-				short classIndex = constantizeClass(className);
-				short methodIndex = constantizeField(classIndex, field, declaration);
-				
-				bytecode.writeByte(isstatic ? 0xb3 : 0xb5);
-				bytecode.writeShort(methodIndex);
-			} catch (IOException e) { throw new RuntimeException(e); }
+			int classIndex = constantizeClass(className);
+			int methodIndex = constantizeField(classIndex, field, declaration);
+			
+			pop(slotsOf(declaration.charAt(0)) + (isstatic ? 0 : 1));
+			
+			write(isstatic ? 0xb3 : 0xb5);
+			writeShort(methodIndex);
 		}
 		
 		public void emitStoreLocal(int number) {
-			try {
-				bytecode.writeByte(0x3a);
-				bytecode.writeByte(number);
-			} catch (IOException e) { throw new RuntimeException(e); }
+			pop(1);
+			write(0x3a);
+			write(number);
 		}
 		
 		public void emitLocal(int number) {
-			try {
-				bytecode.writeByte(0x19);
-				bytecode.writeByte(number);
-			} catch (IOException e) { throw new RuntimeException(e); }
+			push(1);
+			write(0x19);
+			write(number);
 		}
 		
 		public void emitStoreIntegerLocal(int number) {
-			try {
-				bytecode.writeByte(0x36);
-				bytecode.writeByte(number);
-			} catch (IOException e) { throw new RuntimeException(e); }
+			pop(1);
+			write(0x36);
+			write(number);
 		}
 		
 		public void emitIntegerLocal(int number) {
-			try {
-				bytecode.writeByte(0x15);
-				bytecode.writeByte(number);
-			} catch (IOException e) { throw new RuntimeException(e); }
+			push(1);
+			write(0x15);
+			write(number);
 		}
 		
 		public void emitSwap() {
-			try {
-				bytecode.writeByte(0x5f);
-			} catch (IOException e) { throw new RuntimeException(e); }
+			write(0x5f);
+		}
+		
+		public void emitIntegerAdd() {
+			pop(1);
+			write(0x60);
+		}
+		
+		public void emitIntegerSubtract() {
+			pop(1);
+			write(0x64);
+		}
+		
+		public void emitShiftLeft() {
+			pop(1);
+			write(0x78);
+		}
+		
+		public void emitUnsignedShiftRight() {
+			pop(1);
+			write(0x7c);
 		}
 		
 		public void emitBitwiseAnd() {
-			try {
-				bytecode.writeByte(0x7e);
-			} catch (IOException e) { throw new RuntimeException(e); }
+			pop(1);
+			write(0x7e);
 		}
 		
-		public short constantize(String value) {
-			try {
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				DataOutputStream dos = new DataOutputStream(baos);
-				
-				dos.writeByte(0x01);
-				dos.writeUTF(value);
-				
-				constantPool.add(baos.toByteArray());
-				return (short)constantPool.size();
-			} catch (IOException e) { throw new RuntimeException(e); }
+		public void emitBitwiseOr() {
+			pop(1);
+			write(0x80);
 		}
 		
-		public short constantizeInt(int value) {
-			try {
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				DataOutputStream dos = new DataOutputStream(baos);
-				
-				dos.writeByte(0x03);
-				dos.writeInt(value);
-				
-				constantPool.add(baos.toByteArray());
-				return (short)constantPool.size();
-			} catch (IOException e) { throw new RuntimeException(e); }
+		public void emitBitwiseXor() {
+			pop(1);
+			write(0x82);
 		}
 		
-		public short constantizeString(String value) {
-			try {
-				short stringIndex = constantize(value);
-				
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				DataOutputStream dos = new DataOutputStream(baos);
-				
-				dos.writeByte(0x08);
-				dos.writeShort(stringIndex);
+		/**
+		 * Returns the index of a constant pool entry, adding it only if an
+		 * identical one is not there already.
+		 */
+		private int intern(byte[] entry) {
+			ByteBuffer key = ByteBuffer.wrap(entry);
+			Integer index = constantIndexes.get(key);
+			
+			if (index == null) {
+				if (constantPool.size() + 1 >= 0xffff) {
+					throw new RuntimeException("constant pool overflow");
+				}
 				
-				constantPool.add(baos.toByteArray());
-				return (short)constantPool.size();
-			} catch (IOException e) { throw new RuntimeException(e); }
+				constantPool.add(entry);
+				index = constantPool.size();
+				constantIndexes.put(key, index);
+			}
+			
+			return index;
 		}
 		
-		public short constantizeClass(String className) {
-			try {
-				String binaryName = className.replaceAll("\\.", "/");
-				
-				short nameIndex = constantize(binaryName);
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				DataOutputStream dos = new DataOutputStream(baos);
-				
-				dos.writeByte(0x07);
-				dos.writeShort(nameIndex);
-				
-				constantPool.add(baos.toByteArray());
-				return (short)constantPool.size();
-			} catch (IOException e) { throw new RuntimeException(e); }
+		/**
+		 * Interns an entry of a tag and one or two u2 indexes.
+		 */
+		private int intern(int tag, int first, int second, boolean pair) {
+			byte[] entry = new byte[pair ? 5 : 3];
+			
+			entry[0] = (byte)tag;
+			entry[1] = (byte)(first >>> 8);
+			entry[2] = (byte)first;
+			
+			if (pair) {
+				entry[3] = (byte)(second >>> 8);
+				entry[4] = (byte)second;
+			}
+			
+			return intern(entry);
 		}
 		
-		public short constantizeNameAndType(String name, String type) {
-			try {
-				short nameIndex = constantize(name);
-				short typeIndex = constantize(type);
-				
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				DataOutputStream dos = new DataOutputStream(baos);
+		/**
+		 * Interns a CONSTANT_Utf8 entry, which holds <code>value</code> in
+		 * the modified UTF-8 of DataOutput.writeUTF.
+		 */
+		public int constantize(String value) {
+			Integer index = stringIndexes.get(value);
 			
-				dos.writeByte(12);
-				dos.writeShort(nameIndex);
-				dos.writeShort(typeIndex);
+			if (index != null) {
+				return index;
+			}
+			
+			int length = 0;
+			
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
 				
-				constantPool.add(baos.toByteArray());
-				return (short)constantPool.size();
-			} catch (IOException e) { throw new RuntimeException(e); }
+				length += (c >= 0x0001 && c <= 0x007f) ? 1 : (c <= 0x07ff) ? 2 : 3;
+			}
+			
+			if (length > 0xffff) {
+				throw new RuntimeException("constant too long");
+			}
+			
+			byte[] entry = new byte[3 + length];
+			int at = 3;
+			
+			entry[0] = 0x01;
+			entry[1] = (byte)(length >>> 8);
+			entry[2] = (byte)length;
+			
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				
+				if (c >= 0x0001 && c <= 0x007f) {
+					entry[at++] = (byte)c;
+				} else if (c <= 0x07ff) {
+					entry[at++] = (byte)(0xc0 | (c >> 6));
+					entry[at++] = (byte)(0x80 | (c & 0x3f));
+				} else {
+					entry[at++] = (byte)(0xe0 | (c >> 12));
+					entry[at++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+					entry[at++] = (byte)(0x80 | (c & 0x3f));
+				}
+			}
+			
+			index = intern(entry);
+			stringIndexes.put(value, index);
+			
+			return index;
 		}
 		
-		public short constantizeMethod(short classIndex, String methodName, String type) {
-			try {
-				short nameAndTypeIndex = constantizeNameAndType(methodName, type);
-				
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				DataOutputStream dos = new DataOutputStream(baos);
+		public int constantizeInt(int value) {
+			return intern(new byte[] { 0x03,
+				(byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value });
+		}
+		
+		public int constantizeString(String value) {
+			return intern(0x08, constantize(value), 0, false);
+		}
+		
+		public int constantizeClass(String className) {
+			Integer index = classIndexes.get(className);
 			
-				dos.writeByte(10);
-				dos.writeShort(classIndex);
-				dos.writeShort(nameAndTypeIndex);
+			if (index == null) {
+				index = intern(0x07, constantize(className.replace('.', '/')), 0, false);
+				classIndexes.put(className, index);
+			}
 			
-				constantPool.add(baos.toByteArray());
-				return (short)constantPool.size();
-			} catch (IOException e) { throw new RuntimeException(e); }
+			return index;
 		}
 		
-		public short constantizeField(short classIndex, String fieldName, String type) {
-			try {
-				short nameAndTypeIndex = constantizeNameAndType(fieldName, type);
+		public int constantizeNameAndType(String name, String type) {
+			return intern(12, constantize(name), constantize(type), true);
+		}
+		
+		public int constantizeMethod(int classIndex, String methodName, String type) {
+			return intern(10, classIndex, constantizeNameAndType(methodName, type), true);
+		}
+		
+		public int constantizeField(int classIndex, String fieldName, String type) {
+			return intern(9, classIndex, constantizeNameAndType(fieldName, type), true);
+		}
+		
+		/**
+		 * Writes a full frame for every branch target in the code. Local 0
+		 * is typed as JITMemorySegment, which is all the code needs of it.
+		 */
+		private byte[] createStackMapTable(int thisClass) throws IOException {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(baos);
+			
+			SortedMap<Integer,Integer> targets = frames.headMap(size);
+			int previous = -1;
+			
+			dos.writeShort(targets.size());
+			
+			for (Map.Entry<Integer,Integer> frame : targets.entrySet()) {
+				dos.writeByte(255); // full_frame
+				dos.writeShort(frame.getKey() - previous - 1);
+				
+				dos.writeShort(fieldIndex);
+				dos.writeByte(7); // Object
+				dos.writeShort(thisClass);
+				dos.writeByte(1); // Integer
+				
+				for (String type : localTypes) {
+					if (type.equals(encodeIntType())) {
+						dos.writeByte(1);
+					} else {
+						dos.writeByte(7);
+						dos.writeShort(constantizeClass(type.substring(1, type.length() - 1)));
+					}
+				}
 				
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				DataOutputStream dos = new DataOutputStream(baos);
+				dos.writeShort(frame.getValue());
 				
-				dos.writeByte(9);
-				dos.writeShort(classIndex);
-				dos.writeShort(nameAndTypeIndex);
+				for (int i = 0; i < frame.getValue(); i++) {
+					dos.writeByte(1);
+				}
 				
-				constantPool.add(baos.toByteArray());
-				return (short)constantPool.size();
-			} catch (IOException e) { throw new RuntimeException(e); }
+				previous = frame.getKey();
+			}
+			
+			dos.close();
+			
+			return baos.toByteArray();
 		}
 		
-		protected byte[] createBytecode() {
+		public byte[] createBytecode() {
+			if (outOfRange) {
+				throw new RuntimeException("branch out of range");
+			}
+			
 			try {
-				short __magtest = constantizeClass(getClassName());
-				short _magarathea_JITMemorySegment = constantizeClass("magarathea/JITMemorySegment");
+				int __magtest = constantizeClass(getClassName());
+				int _magarathea_JITMemorySegment = constantizeClass("magarathea/JITMemorySegment");
 				
-				short _magarathea_JITMemorySegment__init_ = constantizeMethod(
+				int _magarathea_JITMemorySegment__init_ = constantizeMethod(
 					_magarathea_JITMemorySegment, "<init>", "()V");
 				
-				short _evaluate_ = constantize("evaluate");
-				short _init_ = constantize("<init>");
-				short _void_ = constantize("()V");
-				short _int_void_ = constantize("(I)V");
-				short _code_ = constantize("Code");
+				int _evaluate_ = constantize("evaluate");
+				int _init_ = constantize("<init>");
+				int _void_ = constantize("()V");
+				int _int_int_ = constantize("(I)I");
+				int _code_ = constantize("Code");
 				
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				byte[] stackMapTable = createStackMapTable(_magarathea_JITMemorySegment);
+				int _stack_map_table_ = constantize("StackMapTable");
+				
+				ByteArrayOutputStream baos = new ByteArrayOutputStream(size + 2048);
 				
 				DataOutputStream dos;
 				
@@ -374,7 +639,7 @@ public class RuntimeCompiler {
 				dos.writeInt(0xCAFEBABE);
 
 				dos.writeShort(0);
-				dos.writeShort(0x32);
+				dos.writeShort(61); // Java 17
 				dos.writeShort(1 + constantPool.size()); // constant pool size + 1
 				
 				for (int i = 0; i < constantPool.size(); i++) {
@@ -401,7 +666,7 @@ public class RuntimeCompiler {
 				
 				dos.writeShort(_code_);
 				dos.writeInt(17);
-				dos.writeShort(255);
+				dos.writeShort(1);
 				dos.writeShort(1);
 				dos.writeInt(5);
 				// method body
@@ -414,24 +679,26 @@ public class RuntimeCompiler {
 				dos.writeShort(0); // exceptions
 				dos.writeShort(0); // attributes
 				
-				// method - evaluate()V;
+				// method - evaluate(I)I;
 				dos.writeShort(0x0001);
 				dos.writeShort(_evaluate_);
-				dos.writeShort(_int_void_);
+				dos.writeShort(_int_int_);
 				dos.writeShort(1);
 				
 				dos.writeShort(_code_);
-				dos.writeInt(13 + bytecodeBuffer.size());
-				dos.writeShort(255);
-				dos.writeShort(2 + fieldIndex);
-				dos.writeInt(1 + bytecodeBuffer.size());
-				
-				dos.write(bytecodeBuffer.toByteArray());
+				dos.writeInt(12 + size + 6 + stackMapTable.length);
+				dos.writeShort(maxStack);
+				dos.writeShort(fieldIndex);
+				dos.writeInt(size);
 				
-				dos.writeByte(0xb1);
+				dos.write(bytecode, 0, size);
 				
 				dos.writeShort(0); // exceptions
-				dos.writeShort(0); // attributes
+				dos.writeShort(1); // attributes
+				
+				dos.writeShort(_stack_map_table_);
+				dos.writeInt(stackMapTable.length);
+				dos.write(stackMapTable);
 				
 				dos.writeShort(0); // attributes on overall class
 				
@@ -442,211 +709,668 @@ public class RuntimeCompiler {
 				throw new RuntimeException(e);
 			}
 		}
+
+	}
+	
+	/**
+	 * What the emitter needs to know about the block being compiled.
+	 * 
+	 * The module fields a block uses are kept in int locals while it runs.
+	 * A local always holds the current value of its field; the field itself
+	 * is only brought up to date when something outside the segment might
+	 * look at it: when the segment is left, at breakpoints and around calls
+	 * into the field's own module.
+	 */
+	private static class Frame {
+		/**
+		 * Where running off the last instruction leaves to.
+		 */
+		public final int end;
+		
+		/**
+		 * The addresses branches may jump to without leaving, and the index
+		 * of the instruction at each; only ever the start of a loop.
+		 */
+		public final HashMap<Integer, Integer> targets = new HashMap<Integer, Integer>();
+		
+		/**
+		 * The instructions that call breakpoint before they run.
+		 */
+		public final Set<Integer> instrumented;
+		
+		/**
+		 * Fields kept in locals, and those of them the block stores to.
+		 */
+		public final LinkedHashSet<Field> registers = new LinkedHashSet<Field>();
+		public final LinkedHashSet<Field> written = new LinkedHashSet<Field>();
+		
+		/**
+		 * The label bound at each of <code>targets</code>, by address.
+		 */
+		public final HashMap<Integer, JITClassWriter.Label> labels = new HashMap<Integer, JITClassWriter.Label>();
+		
+		/**
+		 * Where each instruction starts relative to <code>base</code>, as
+		 * emitted, and the epilogue every exit goes through.
+		 */
+		public final ArrayList<Integer> extents = new ArrayList<Integer>();
+		public int base;
+		public final JITClassWriter.Label epilogue = new JITClassWriter.Label();
+		
+		public Frame(int end, Set<Integer> instrumented) {
+			this.end = end;
+			this.instrumented = instrumented;
+		}
+		
+		public static String localFor(Field field) {
+			return field.getDeclaringClass().getName() + "." + field.getName();
+		}
+	}
+	
+	private static final VarHandle WORDS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	
+	/**
+	 * Reads the big-endian word at <code>offset</code>.
+	 */
+	static final int fetch(byte[] code, int offset) {
+		return (int)WORDS.get(code, offset);
+	}
+	
+	static final int fetch(PagedRAM code, int offset) {
+		return code.getInt(offset);
+	}
+	
+	private static final boolean isLiteral(int even) {
+		return (even & 0xff000000) == 0x11000000;
+	}
+	
+	/**
+	 * Returns the destination of a jmp.branch with a literal target, or -1
+	 * for every other instruction.
+	 */
+	public static int staticBranchTarget(int even, int odd) {
+		if (odd == 0x90000000 && isLiteral(even)) {
+			return even & 0x00ffffff;
+		} else {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Whether both halves of an instruction refer to something we know how
+	 * to compile. Zeroed memory and data never do.
+	 */
+	public static boolean decodes(OpcodeCollection collect, int even, int odd) {
+		if (!isLiteral(even) && collect.getLeftHandSide(even) == null) {
+			return false;
+		}
 		
-		public JITMemorySegment defineBytecode() {
-			byte[] entireClassBytecode = createBytecode();
+		return collect.getRightHandSide(odd) != null;
+	}
+	
+	/**
+	 * Finds the end of the basic block starting at <code>start</code>. The
+	 * block runs up to and including the first jmp.branch, and is cut short
+	 * before an instruction that does not decode, before another known
+	 * leader, or once it reaches MAX_BLOCK_LENGTH instructions.
+	 * 
+	 * Returns <code>start</code> if there is no code there at all.
+	 */
+	public static int findBlockEnd(OpcodeCollection collect, PagedRAM code, int start, Set<Integer> leaders) {
+		int end = start;
+		
+		while (end >= 0 && end + 8 <= code.capacity() && (end - start) / 8 < MAX_BLOCK_LENGTH) {
+			int even = fetch(code, end);
+			int odd = fetch(code, end + 4);
 			
-			if (isRunningJIT()) {
-				Class c = defineClass("__magjit", entireClassBytecode, 0, entireClassBytecode.length);
-				
-				try {
-					return (JITMemorySegment)c.newInstance();
-				} catch (Throwable t) {
-					throw new RuntimeException(t);
-				}
-			} else {
-				return null;
-			}
+			if (!decodes(collect, even, odd))
+				break;
+			
+			end += 8;
+			
+			if (odd == 0x90000000 || leaders.contains(end))
+				break;
+		}
+		
+		return end;
+	}
+	
+	/**
+	 * Lists the bus ids of every module the given moves still read or
+	 * write once optimised, skipping literals and jumps, which are compiled
+	 * in-line.
+	 */
+	private static final TreeSet<Integer> findModules(ArrayList<Move> moves) {
+		TreeSet<Integer> modules = new TreeSet<Integer>();
+		
+		for (Move move : moves) {
+			if (readsLeftHandSide(move))
+				modules.add(move.even >>> 24);
+			
+			if (!move.isJump() && !move.dead)
+				modules.add(move.odd >>> 24);
 		}
+		
+		return modules;
 	}
 	
-	private static final void writeLHS(JITClassLoader jit, OpcodeCollection collect, int even, int odd) {
-		if ((even & 0xff000000) == 0x11000000) {
-			if (odd != 0x90000000)
-				jit.emitConstantInt(even & 0x00ffffff);
+	/**
+	 * Collects the fields the given moves still read or write once
+	 * optimised.
+	 */
+	private static final void findRegisters(Frame frame, ArrayList<Move> moves) {
+		for (Move move : moves) {
+			if (readsLeftHandSide(move) && move.lhs.isField())
+				frame.registers.add(move.lhs.field);
 			
-		} else {
-			OpcodeCollection.Output lhs = collect.getLeftHandSide(even);
+			if (move.isJump() || move.dead)
+				continue;
 			
-			if (lhs.isField()) {
-				Field field = lhs.field;
-				Class klass = field.getDeclaringClass();
-				
-				int localVariable = jit.addLocal(klass.getName());
-				String fieldType = JITClassLoader.encodeIntType();
-				
-				jit.emitLocal(localVariable);
-				jit.emitFieldAccess(false, klass.getName(), field.getName(), fieldType);
-				
-			} else if (lhs.isMethod()) {
-				Method method = lhs.method;
-				Class klass = method.getDeclaringClass();
-				
-				int localVariable = jit.addLocal(klass.getName());
-				String fieldType = JITClassLoader.encodeObjectType(klass);
-				String methodType = JITClassLoader.encodeMethodType(JITClassLoader.encodeIntType(), "");
-				
-				jit.emitLocal(localVariable);
-				jit.emitMethodCall(klass.getName(), method.getName(), methodType);
+			if (move.folded != null) {
+				frame.registers.add(move.folded);
+				frame.written.add(move.folded);
+			} else if (move.rhs.isField()) {
+				frame.registers.add(move.rhs.field);
+				frame.written.add(move.rhs.field);
+			} else if (move.rhs.isIntrinsic()) {
+				// compiled in-line, on its fields alone.
+				frame.registers.add(move.rhs.operand);
+				frame.registers.add(move.rhs.target);
+				frame.written.add(move.rhs.target);
 			}
 		}
 	}
 	
-	private static final void writeRHS(JITClassLoader jit, OpcodeCollection collect,
-	  int even, int odd, ArrayList<Integer> extents, int start, int end, int jumpOffset) {
+	private static final int moduleLocal(JITClassWriter jit, Class<?> klass) {
+		return jit.addLocal(klass.getName(), JITClassWriter.encodeObjectType(klass));
+	}
+	
+	private static final int registerLocal(JITClassWriter jit, Field field) {
+		return jit.addLocal(Frame.localFor(field), JITClassWriter.encodeIntType());
+	}
+	
+	/**
+	 * Copies a field into its local.
+	 */
+	private static final void emitRegisterLoad(JITClassWriter jit, Field field) {
+		Class klass = field.getDeclaringClass();
 		
-		if (odd == 0x90000000) { // jmp.branch
-			if ((even & 0xff000000) != 0x11000000 || (start % 8 != (even % 8))) {
-				jit.emitLocal(0);
-				jit.emitSwap();
-				jit.emitMethodCall("magarathea/JITMemorySegment", "jumpTo", "(I)V");
+		jit.emitLocal(moduleLocal(jit, klass));
+		jit.emitFieldAccess(false, klass.getName(), field.getName(), JITClassWriter.encodeIntType());
+		jit.emitStoreIntegerLocal(registerLocal(jit, field));
+	}
+	
+	/**
+	 * Copies a local back into its field.
+	 */
+	private static final void emitRegisterStore(JITClassWriter jit, Field field) {
+		Class klass = field.getDeclaringClass();
+		
+		jit.emitLocal(moduleLocal(jit, klass));
+		jit.emitIntegerLocal(registerLocal(jit, field));
+		jit.emitFieldPut(false, klass.getName(), field.getName(), JITClassWriter.encodeIntType());
+	}
+	
+	/**
+	 * Writes back every register the block stores to, or only those of
+	 * <code>module</code> if it is not null.
+	 */
+	private static final void emitSpill(JITClassWriter jit, Frame frame, Class<?> module) {
+		for (Field field : frame.written) {
+			if (module == null || field.getDeclaringClass() == module)
+				emitRegisterStore(jit, field);
+		}
+	}
+	
+	/**
+	 * Reloads the registers of <code>module</code> after a call into it.
+	 */
+	private static final void emitReload(JITClassWriter jit, Frame frame, Class<?> module) {
+		for (Field field : frame.registers) {
+			if (field.getDeclaringClass() == module)
+				emitRegisterLoad(jit, field);
+		}
+	}
+	
+	/**
+	 * Loads the MachineContext into local 3 and its condition flag into
+	 * local 2.
+	 */
+	private static final void emitContextLoad(JITClassWriter jit) {
+		jit.emitLocal(0);
+		jit.emitFieldAccess(false, "magarathea/JITMemorySegment", "context", "Lmagarathea/MachineContext;");
+		jit.emitStoreLocal(3);
+		
+		jit.emitLocal(3);
+		jit.emitFieldAccess(false, "magarathea/MachineContext", "condition", "I");
+		jit.emitStoreIntegerLocal(2);
+	}
+	
+	private static final void emitModuleLoad(JITClassWriter jit, Class<?> klass, int id) {
+		jit.emitLocal(3);
+		jit.emitConstantInt(id);
+		jit.emitMethodCall("magarathea/MachineContext", "getModule", "(I)Ljava/lang/Object;");
+		jit.emitCheckCast(klass.getName());
+	}
+	
+	/**
+	 * Hands the condition flag, kept in local 2 while the segment runs, back
+	 * to the machine.
+	 */
+	private static final void emitConditionWriteBack(JITClassWriter jit) {
+		jit.emitLocal(3);
+		jit.emitIntegerLocal(2);
+		jit.emitFieldPut(false, "magarathea/MachineContext", "condition", "I");
+	}
+	
+	/**
+	 * Leaves the segment by way of the epilogue, returning the guest address
+	 * on top of the stack. Always five bytes long.
+	 */
+	private static final void emitGotoEpilogue(JITClassWriter jit, Frame frame) {
+		jit.emitGoto(frame.epilogue);
+	}
+	
+	/**
+	 * Leaves the segment, returning <code>offset</code> to the dispatcher.
+	 * Always eight bytes long.
+	 */
+	private static final void emitExit(JITClassWriter jit, Frame frame, int offset) {
+		jit.emitConstantInt(offset);
+		emitGotoEpilogue(jit, frame);
+	}
+	
+	/**
+	 * The one place the segment returns from: writes back the registers and
+	 * the condition flag, and returns the guest address on top of the stack.
+	 */
+	private static final void emitEpilogue(JITClassWriter jit, Frame frame) {
+		emitSpill(jit, frame, null);
+		emitConditionWriteBack(jit);
+		jit.emitIntegerReturn();
+	}
+	
+	/**
+	 * Whether the left-hand side of a move has to be evaluated at all.
+	 * Methods always are, for their side effects; fields only when their
+	 * value is both unknown and used.
+	 */
+	private static final boolean readsLeftHandSide(Move move) {
+		if (move.lhs == null) {
+			return false;
+		} else if (move.lhs.isMethod()) {
+			return true;
+		} else {
+			return !move.known && !move.dead && !isNeverTaken(move);
+		}
+	}
+	
+	private static final boolean isNeverTaken(Move move) {
+		return move.isBranch() && move.conditionKnown && move.condition != 0;
+	}
+	
+	private static final boolean isAlwaysTaken(Move move) {
+		return move.isBranch() && move.conditionKnown && move.condition == 0;
+	}
+	
+	private static final void writeLHS(JITClassWriter jit, Frame frame, Move move) {
+		if (!readsLeftHandSide(move)) {
+			// branches take a known target directly; see writeRHS.
+			if (move.known && !move.dead && !move.isBranch())
+				jit.emitConstantInt(move.value);
+			
+			return;
+		}
+		
+		if (move.lhs.isField()) {
+			jit.emitIntegerLocal(registerLocal(jit, move.lhs.field));
+			
+		} else if (move.lhs.isMethod()) {
+			Method method = move.lhs.method;
+			Class klass = method.getDeclaringClass();
+			
+			int localVariable = moduleLocal(jit, klass);
+			String methodType = JITClassWriter.encodeMethodType(JITClassWriter.encodeIntType(), "");
+			
+			emitSpill(jit, frame, klass);
+			
+			jit.emitLocal(localVariable);
+			jit.emitMethodCall(klass.getName(), method.getName(), methodType);
+			
+			emitReload(jit, frame, klass);
+			
+			if (move.dead || isNeverTaken(move))
+				jit.emitPop();
+		}
+	}
+	
+	/**
+	 * Whether instances of a module are handed the Computer, and so might
+	 * write to the RAM the running segment was compiled from.
+	 */
+	static final boolean reachesRAM(Class<?> klass) {
+		try {
+			klass.getConstructor(Computer.class);
+			
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Leaves the segment at <code>next</code> if it has been invalidated.
+	 */
+	private static final void emitInvalidationCheck(JITClassWriter jit, Frame frame, int next) {
+		jit.emitLocal(0);
+		jit.emitFieldAccess(false, "magarathea/JITMemorySegment", "invalidated", "Z");
+		
+		JITClassWriter.Label valid = new JITClassWriter.Label();
+		
+		jit.emitGotoIf(valid);
+		emitExit(jit, frame, next);
+		jit.bind(valid);
+	}
+	
+	private static final void writeRHS(JITClassWriter jit, Frame frame, Move move) {
+		if (move.dead || isNeverTaken(move)) {
+			return;
+		}
+		
+		if (move.isBranch()) {
+			int target = move.value;
+			
+			JITClassWriter.Label skip = new JITClassWriter.Label();
+			
+			if (move.known && frame.targets.containsKey(target)) {
+				// a branch back to the start of a loop, which has always
+				// been emitted already.
+				if (!isAlwaysTaken(move)) {
+					jit.emitIntegerLocal(2);
+					jit.emitGotoIfNot(skip); // skip the jump and the exit.
+				}
+				
+				// leave instead if the machine has been interrupted; this is
+				// the only way a segment can run for long.
+				jit.emitLocal(3);
+				jit.emitFieldAccess(false, "magarathea/MachineContext", "interrupted", "Z");
+				jit.emitGotoIf(frame.labels.get(target));
+				
+				emitExit(jit, frame, target);
+				
+				if (!isAlwaysTaken(move))
+					jit.bind(skip);
+			} else if (move.continues) {
+				// a trace goes on at the target; leave where it is not taken.
+				if (!isAlwaysTaken(move)) {
+					jit.emitIntegerLocal(2);
+					jit.emitGotoIf(skip); // skip the exit.
+					
+					emitExit(jit, frame, move.offset + 8);
+					jit.bind(skip);
+				}
+			} else if (move.known) {
+				if (!isAlwaysTaken(move)) {
+					jit.emitIntegerLocal(2);
+					jit.emitGotoIfNot(skip); // skip the exit.
+				}
+				
+				emitExit(jit, frame, target);
+				
+				if (!isAlwaysTaken(move))
+					jit.bind(skip);
+			} else if (isAlwaysTaken(move)) {
+				emitGotoEpilogue(jit, frame);
 			} else {
 				jit.emitIntegerLocal(2);
+				jit.emitGotoIfNot(skip); // skip the exit, then drop the target.
 				
-				if (extents == null) {
-					jit.emitGotoIf(0);
-				} else {
-					jit.emitGotoIf(extents.get((even & 0x00ffffff - start) / 8) + jumpOffset - jit.getSizeOfBytecode());
-				}
+				emitGotoEpilogue(jit, frame);
+				jit.bind(skip);
+				jit.emitPop();
 			}
-		} else if (odd == 0x90000001) { // jmp.nonneg
+		} else if (move.isNonNeg()) {
 			jit.emitConstantInt(1 << 31);
 			jit.emitBitwiseAnd();
 			
 			jit.emitStoreIntegerLocal(2);
-		} else if (odd == 0x90000002) { // jmp.zero
+		} else if (move.isZero()) {
 			jit.emitStoreIntegerLocal(2);
+		} else if (move.folded != null || move.rhs.isField()) {
+			Field field = (move.folded != null) ? move.folded : move.rhs.field;
+			
+			jit.emitStoreIntegerLocal(registerLocal(jit, field));
+	
+		} else if (move.rhs.isIntrinsic()) {
+			// an Intrinsic needs no call: target = operand OP value.
+			OpcodeCollection.Output rhs = move.rhs;
+			
+			if (rhs.operation != Intrinsic.Operation.COPY) {
+				jit.emitIntegerLocal(registerLocal(jit, rhs.operand));
+				jit.emitSwap();
+			}
+			
+			switch (rhs.operation) {
+			case ADD:      jit.emitIntegerAdd(); break;
+			case SUBTRACT: jit.emitIntegerSubtract(); break;
+			case AND:      jit.emitBitwiseAnd(); break;
+			case OR:       jit.emitBitwiseOr(); break;
+			case XOR:      jit.emitBitwiseXor(); break;
+			case LSHIFT:   jit.emitShiftLeft(); break;
+			case RSHIFT:   jit.emitUnsignedShiftRight(); break;
+			default:       break;
+			}
+			
+			jit.emitStoreIntegerLocal(registerLocal(jit, rhs.target));
+			
 		} else {
-			OpcodeCollection.Output rhs = collect.getRightHandSide(odd);
+			Method method = move.rhs.method;
+			Class klass = method.getDeclaringClass();
 	
-			if (rhs.isField()) {
-				Field field = rhs.field;
-				Class klass = field.getDeclaringClass();
-				
-				int localVariable = jit.addLocal(klass.getName());
-				String fieldType = JITClassLoader.encodeIntType();
+			int localVariable = moduleLocal(jit, klass);
+			String methodType = JITClassWriter.encodeMethodType(
+				JITClassWriter.encodeVoidType(), JITClassWriter.encodeIntType());
+			
+			emitSpill(jit, frame, klass);
+	
+			jit.emitLocal(localVariable);
+			jit.emitSwap();
+			jit.emitMethodCall(klass.getName(), method.getName(), methodType);
+			
+			emitReload(jit, frame, klass);
+			
+			if (reachesRAM(klass)) {
+				emitInvalidationCheck(jit, frame, move.offset + 8);
+			}
+		}
+	}
+	
+	private static final void writeInstruction(JITClassWriter jit, Frame frame, Move move) {
+		if (frame.instrumented.contains(move.offset)) {
+			emitSpill(jit, frame, null);
+			
+			jit.emitLocal(0);
+			jit.emitConstantInt(move.offset);
+			jit.emitMethodCall("magarathea.JITMemorySegment", "breakpoint", "(I)Z");
+			
+			JITClassWriter.Label resume = new JITClassWriter.Label();
+			
+			jit.emitGotoIf(resume);
+			emitExit(jit, frame, move.offset);
+			jit.bind(resume);
+		}
 		
-				jit.emitLocal(localVariable);
-				jit.emitSwap();
-				jit.emitFieldPut(false, klass.getName(), field.getName(), fieldType);
+		writeLHS(jit, frame, move);
+		writeRHS(jit, frame, move);
+	}
+	
+	/**
+	 * Loads a class file written by compile or compileTrace as a segment.
+	 */
+	public static JITMemorySegment define(byte[] classFile) {
+		try {
+			// a hidden class cannot be found by name, so nothing but its
+			// segment keeps it alive; both are unloaded together.
+			Class<?> c = MethodHandles.lookup().defineHiddenClass(classFile, false).lookupClass();
+			return (JITMemorySegment)c.getDeclaredConstructor().newInstance();
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+	
+	/**
+	 * Returns the class file of the segment for the block [start, end),
+	 * calling breakpoint before each of the <code>instrumented</code>
+	 * instructions. <code>code</code> holds the bytes of the block alone,
+	 * and is not touched by anything else while it compiles, so this is
+	 * safe to call from any thread.
+	 * 
+	 * A segment that would be larger than <code>maxMethodSize</code>, or
+	 * MAX_METHOD_SIZE, covers only the start of the block, and exits to the
+	 * first instruction it leaves out.
+	 */
+	public static byte[] compile(OpcodeCollection collect, byte[] code, int start, int end, Options options,
+	  Set<Integer> instrumented) {
+		ArrayList<Move> moves = decode(collect, code, start, end);
+		Frame frame = new Frame(end, instrumented);
+		int target = BlockOptimizer.backEdgeTarget(moves, start, end);
 		
-			} else if (rhs.isMethod()) {
-				Method method = rhs.method;
-				Class klass = method.getDeclaringClass();
+		if (target != -1) {
+			frame.targets.put(start + target * 8, target);
+		}
 		
-				int localVariable = jit.addLocal(klass.getName());
-				String fieldType = JITClassLoader.encodeObjectType(klass);
-				String methodType = JITClassLoader.encodeMethodType(
-					JITClassLoader.encodeVoidType(), JITClassLoader.encodeIntType());
+		if (options.optimize) {
+			BlockOptimizer.optimize(moves, target);
+		}
 		
-				jit.emitLocal(localVariable);
-				jit.emitSwap();
-				jit.emitMethodCall(klass.getName(), method.getName(), methodType);
+		JITClassWriter jit = emit(collect, moves, frame);
+		int limit = Math.min(options.maxMethodSize, MAX_METHOD_SIZE);
+		
+		if (jit.getSizeOfBytecode() > limit && moves.size() > 1) {
+			// compile again with as many instructions as would fit; that
+			// optimises differently, so check its size all over again.
+			int tail = 3 + jit.getSizeOfBytecode() - frame.epilogue.getAddress(); // the last exit, and the epilogue.
+			int count = moves.size() - 1;
+			
+			while (count > 1 && frame.base + frame.extents.get(count) + tail > limit) {
+				count--;
 			}
+			
+			return compile(collect, code, start, start + count * 8, options, instrumented);
 		}
+		
+		return jit.createBytecode();
 	}
 	
-	public static JITMemorySegment recompile(OpcodeCollection collect, byte[] code, int start, int end) {
-		return recompile(collect, code, start, end, new Options());
-	}
-	
-	public static JITMemorySegment recompile(OpcodeCollection collect, byte[] code, int start, int end,
-	  Options options) {
-		JITClassLoader jit = new JITClassLoader();
-		JITClassLoader dryRun = new JITClassLoader(); // used only to generate extents.
+	/**
+	 * Returns the class file of a segment for a trace: the blocks
+	 * [starts[k], ends[k]) one after the other, as a loop recorded them to
+	 * run, where <code>code[k]</code> holds the bytes of block k. The
+	 * segment is entered at the first block and jumps straight back to it
+	 * from the last, and leaves wherever execution strays from the trace.
+	 * 
+	 * Returns null if the trace does not go from one block to the next by
+	 * a constant branch or by running on, does not end with a branch back
+	 * to its start, or would be larger than <code>maxMethodSize</code>.
+	 */
+	public static byte[] compileTrace(OpcodeCollection collect, byte[][] code, int[] starts, int[] ends,
+	  Options options, Set<Integer> instrumented) {
+		ArrayList<Move> moves = new ArrayList<Move>();
+		int last = starts.length - 1;
 		
-		jit.addLocal("");
-		jit.addLocal("__JMP");
+		for (int k = 0; k <= last; k++) {
+			moves.addAll(decode(collect, code[k], starts[k], ends[k]));
+		}
 		
-		dryRun.emitConstantInt(0);
-		dryRun.emitStoreIntegerLocal(2);
+		Frame frame = new Frame(ends[last], instrumented);
 		
-		jit.emitConstantInt(0);
-		jit.emitStoreIntegerLocal(2);
+		frame.targets.put(starts[0], 0);
 		
-		for (Class<?> klass : collect.getModules()) {
-			if (klass != null) {
-				int localVariable = jit.addLocal(klass.getName());
-				
-				boolean hasConstructorSpec = false;
-				
-				try {
-					klass.getConstructor(new Class[] { JITMemorySegment.class });
-					
-					hasConstructorSpec = true;
-				} catch (NoSuchMethodException e) { }
-				
-				if (hasConstructorSpec) {
-					jit.emitNewObjectSpec(klass.getName(), "(Lmagarathea/JITMemorySegment;)V");
-					dryRun.emitNewObjectSpec(klass.getName(), "(Lmagarathea/JITMemorySegment;)V");
-				} else {
-					jit.emitNewObject(klass.getName());
-					dryRun.emitNewObject(klass.getName());
-				}
-				jit.emitStoreLocal(localVariable);
-				dryRun.emitStoreLocal(localVariable);
-			}
+		if (options.optimize) {
+			BlockOptimizer.optimize(moves, -1); // nothing is known at the start anyway.
 		}
 		
-		try {
-			/* generate jump extents */
-			ArrayList<Integer> extents = new ArrayList<Integer>();
-			
-			DataInput in = new DataInputStream (new ByteArrayInputStream (code, start, end));
-			
-			dryRun.emitIntegerLocal(1);
-			dryRun.emitTableSwitch(0, extents, 0);
+		int index = -1;
+		
+		for (int k = 0; k <= last; k++) {
+			index += (ends[k] - starts[k]) / 8;
 			
-			int bytesAfterSwitch = dryRun.getSizeOfBytecode();
+			Move move = moves.get(index);
+			int next = starts[(k + 1) % starts.length];
 			
-			for (int i = start; i < end; i += 8) {
-				extents.add(dryRun.getSizeOfBytecode() - bytesAfterSwitch);
-				
-				int even = in.readInt();
-				int odd = in.readInt();
-				
-				if (options.debuggingMode) {
-					dryRun.emitLocal(0);
-					dryRun.emitConstantInt(i);
-					dryRun.emitMethodCall("magarathea.JITMemorySegment", "breakpoint", "(I)V");
-				}
-				
-				try {
-					writeLHS(dryRun, collect, even, odd);
-					writeRHS(dryRun, collect, even, odd, null, start, end, 0);
-				} catch (NullPointerException e) { break; }
+			if (move.isBranch() && move.known && move.value == next && !isNeverTaken(move)) {
+				move.continues = (k < last);
+			} else if (k == last || !(ends[k] == next && !isAlwaysTaken(move))) {
+				return null;
 			}
+		}
+		
+		JITClassWriter jit = emit(collect, moves, frame);
+		
+		if (jit.getSizeOfBytecode() > Math.min(options.maxMethodSize, MAX_METHOD_SIZE)) {
+			return null;
+		}
+		
+		return jit.createBytecode();
+	}
+	
+	private static ArrayList<Move> decode(OpcodeCollection collect, byte[] code, int start, int end) {
+		ArrayList<Move> moves = new ArrayList<Move>();
+		
+		for (int i = start; i < end; i += 8) {
+			moves.add(new Move(collect, i, fetch(code, i - start), fetch(code, i - start + 4)));
+		}
+		
+		return moves;
+	}
+	
+	/**
+	 * Emits the whole segment for the given moves, filling in the layout
+	 * of <code>frame</code>.
+	 */
+	private static JITClassWriter emit(OpcodeCollection collect, ArrayList<Move> moves, Frame frame) {
+		JITClassWriter jit = new JITClassWriter();
+		
+		findRegisters(frame, moves);
+		
+		jit.addLocal("", JITClassWriter.encodeIntType()); // local 2 holds the condition flag
+		jit.addLocal("__CONTEXT", JITClassWriter.encodeObjectType(MachineContext.class));
+		
+		emitContextLoad(jit);
+		
+		for (int id : findModules(moves)) {
+			Class<?> klass = collect.getModules()[id];
+			int localVariable = moduleLocal(jit, klass);
 			
-			in = new DataInputStream (new ByteArrayInputStream (code, start, end));
-			
-			jit.emitIntegerLocal(1);
-			jit.emitTableSwitch(0, extents, 0);
+			emitModuleLoad(jit, klass, id);
+			jit.emitStoreLocal(localVariable);
+		}
+		
+		for (Field field : frame.registers) {
+			emitRegisterLoad(jit, field);
+		}
+		
+		frame.base = jit.getSizeOfBytecode();
+		
+		for (int i = 0; i < moves.size(); i++) {
+			Move move = moves.get(i);
 			
-			int jumpOffsetOffset = jit.getSizeOfBytecode();
+			frame.extents.add(jit.getSizeOfBytecode() - frame.base);
 			
-			for (int i = start; i < end; i += 8) {
-				int even = in.readInt();
-				int odd = in.readInt();
-				
-				if (options.debuggingMode) {
-					jit.emitLocal(0);
-					jit.emitConstantInt(i);
-					jit.emitMethodCall("magarathea.JITMemorySegment", "breakpoint", "(I)V");
-				}
+			if (frame.targets.containsKey(move.offset) && frame.targets.get(move.offset) == i) {
+				JITClassWriter.Label loop = new JITClassWriter.Label();
 				
-				try {
-					writeLHS(jit, collect, even, odd);
-					writeRHS(jit, collect, even, odd, extents, start, end, jumpOffsetOffset);
-				} catch (NullPointerException e) { break; }
+				jit.bind(loop);
+				frame.labels.put(move.offset, loop);
 			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+			
+			writeInstruction(jit, frame, move);
 		}
 		
-		JITMemorySegment segment = jit.defineBytecode();
-		
-		segment.setExtents(start, end);
+		jit.emitConstantInt(frame.end);
+		jit.bind(frame.epilogue);
+		emitEpilogue(jit, frame);
 		
-		return segment;
+		return jit;
 	}
-}
\ No newline at end of file
+}
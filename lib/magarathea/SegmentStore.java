@@ -0,0 +1,149 @@
+package magarathea;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Compiled segments kept on disk between runs, one file per block. Each
+ * file is named after a hash of everything its code depends on: the
+ * block's extents and bytes, the module layout and the options that change
+ * what is emitted. Segments with breakpoints are never stored. Anything
+ * that would compile differently hashes differently, so files are never
+ * invalidated; stale ones are simply no longer looked up. A file that
+ * turns out to be damaged is deleted.
+ */
+class SegmentStore {
+	/**
+	 * Bumped whenever the compiler starts emitting different code for the
+	 * same input.
+	 */
+	private static final int FORMAT = 4;
+	
+	private File directory;
+	private byte[] salt;
+	
+	public SegmentStore(File dir, OpcodeCollection collect, RuntimeCompiler.Options options) {
+		directory = dir;
+		directory.mkdirs();
+		
+		StringBuilder environment = new StringBuilder();
+		
+		environment.append(FORMAT).append('\n').append(options.optimize).append('\n')
+		           .append(options.maxMethodSize).append('\n').append(collect.getLayout());
+		
+		// whether a module is handed the Computer decides where segments
+		// check for invalidation.
+		for (Class<?> module : collect.getModules()) {
+			if (module != null)
+				environment.append(module.getName()).append(" reaches RAM ")
+				           .append(RuntimeCompiler.reachesRAM(module)).append('\n');
+		}
+		
+		try {
+			salt = environment.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private File fileFor(byte[] code, int start, int end) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			
+			digest.update(salt);
+			digest.update(new byte[] {
+				(byte)(start >>> 24), (byte)(start >>> 16), (byte)(start >>> 8), (byte)start,
+				(byte)(end >>> 24), (byte)(end >>> 16), (byte)(end >>> 8), (byte)end });
+			digest.update(code);
+			
+			StringBuilder name = new StringBuilder();
+			
+			for (byte b : digest.digest()) {
+				name.append(String.format("%02x", b));
+			}
+			
+			return new File(directory, name + ".seg");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Returns the class file stored for the block [start, end), whose bytes
+	 * are <code>code</code>, or null if there is none. A file that cannot be
+	 * read, or that does not hold what its header says, counts as missing
+	 * and is deleted.
+	 */
+	public byte[] load(byte[] code, int start, int end) {
+		File file = fileFor(code, start, end);
+		
+		if (!file.exists()) {
+			return null;
+		}
+		
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			
+			try {
+				int storedStart = in.readInt();
+				int storedEnd = in.readInt();
+				int length = in.readInt();
+				
+				if (storedStart == start && storedEnd == end && length >= 0 && length == file.length() - 12) {
+					byte[] classFile = new byte[length];
+					
+					in.readFully(classFile);
+					
+					return classFile;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// deleted below, like a file that does not match.
+		}
+		
+		file.delete();
+		
+		return null;
+	}
+	
+	/**
+	 * Deletes the class file stored for the block [start, end), because it
+	 * could not be defined.
+	 */
+	public void discard(byte[] code, int start, int end) {
+		fileFor(code, start, end).delete();
+	}
+	
+	/**
+	 * Stores the class file compiled from the block [start, end). The file
+	 * is written under a temporary name and then renamed, so that a
+	 * concurrent run or compiler thread never sees half of it. Failing to
+	 * save only costs a recompile next time.
+	 */
+	public void save(byte[] code, int start, int end, byte[] classFile) {
+		File file = fileFor(code, start, end);
+		
+		try {
+			File temporary = File.createTempFile("segment", ".tmp", directory);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			
+			try {
+				out.writeInt(start);
+				out.writeInt(end);
+				out.writeInt(classFile.length);
+				out.write(classFile);
+			} finally {
+				out.close();
+			}
+			
+			if (!temporary.renameTo(file)) {
+				temporary.delete();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not save compiled segment: " + e.getMessage());
+		}
+	}
+}
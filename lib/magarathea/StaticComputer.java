@@ -1,62 +1,169 @@
 package magarathea;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.HashSet;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import magarathea.anno.Intrinsic;
+
+/**
+ * A machine that runs its program with the Interpreter and, once hot, as
+ * compiled segments.
+ * 
+ * Only instrumented instructions report to the ExecutionListeners. With no
+ * debugger attached that is none of them, unless
+ * <code>debuggingMode</code> is set. An attached debugger instruments every
+ * instruction while the machine is stopped, so that it can step, and only
+ * its breakpoints while it runs. Changing any of this, from any thread,
+ * interrupts the running code and recompiles the affected segments.
+ * 
+ * Modules and peripherals can be swapped while the machine runs. Neither
+ * is compiled into segments, so nothing needs recompiling; a replaced
+ * module only interrupts the running code, so that it stops using the old
+ * instance.
+ */
 public class StaticComputer implements Computer {
-	byte[] randomAccessMemory;
+	/**
+	 * Only the pages the program writes to take up memory.
+	 */
+	PagedRAM randomAccessMemory;
 	Set<MemoryListener> memoryListeners;
 	Set<ExecutionListener> executionListeners;
 	Map<Integer, IO.Device> peripherals;
-	boolean isRunning;
+	IO io; // once the guest has used it.
+	Map<Integer, Object> replacedModules;
+	volatile boolean isRunning;
+	volatile boolean debuggerAttached;
+	Set<Integer> breakpoints;
+	ConcurrentLinkedQueue<Integer> staleOffsets; // -1 stands for all of RAM.
 	int currentOffset;
+	int resumeOffset;
+	CodeCache codeCache;
+	MachineContext context;
+	RuntimeCompiler.Options options;
 	
 	public StaticComputer(byte[] assembledCode) {
+		this(assembledCode, new RuntimeCompiler.Options());
+	}
+	
+	public StaticComputer(byte[] assembledCode, RuntimeCompiler.Options opts) {
+		this(allocateRAM(opts), opts);
+		
+		copyIntoRAM(0, assembledCode, 0, assembledCode.length);
+	}
+	
+	/**
+	 * Starts with the program image in the file <code>image</code>, which
+	 * is mapped rather than read. RAM reads through to the mapping until
+	 * the program writes to a page, so machines started from the same file
+	 * share what they leave unchanged, and the file is never written.
+	 */
+	public StaticComputer(File image, RuntimeCompiler.Options opts) throws IOException {
+		this(loadRAM(image, opts), opts);
+	}
+	
+	private StaticComputer(PagedRAM ram, RuntimeCompiler.Options opts) {
+		options = opts;
 		memoryListeners = new HashSet<MemoryListener>();
 		executionListeners = new HashSet<ExecutionListener>();
 		peripherals = new HashMap<Integer, IO.Device>();
-		randomAccessMemory = new byte[1024 * 1024 * 8];
+		randomAccessMemory = ram;
+		breakpoints = ConcurrentHashMap.newKeySet();
+		replacedModules = new ConcurrentHashMap<Integer, Object>();
+		staleOffsets = new ConcurrentLinkedQueue<Integer>();
 		isRunning = false;
 		currentOffset = 0;
+		resumeOffset = -1;
+		context = new MachineContext(this, OpcodeCollection.instance().getModules());
+	}
+	
+	private static void checkSizeOfRAM(RuntimeCompiler.Options opts) {
+		if (opts.sizeOfRAM < 0 || opts.sizeOfRAM > 1 << 24) {
+			throw new IllegalArgumentException("RAM cannot be " + opts.sizeOfRAM + " bytes");
+		}
+	}
+	
+	private static PagedRAM allocateRAM(RuntimeCompiler.Options opts) {
+		checkSizeOfRAM(opts);
 		
-		copyIntoRAM(0, assembledCode, 0, assembledCode.length);
+		return new PagedRAM(opts.sizeOfRAM, null);
+	}
+	
+	private static PagedRAM loadRAM(File image, RuntimeCompiler.Options opts) throws IOException {
+		long length = image.length();
+		
+		checkSizeOfRAM(opts);
+		
+		if (length > opts.sizeOfRAM) {
+			throw new IllegalArgumentException(image + " does not fit in " + opts.sizeOfRAM + " bytes of RAM");
+		}
+		
+		FileChannel channel = FileChannel.open(image.toPath(), StandardOpenOption.READ);
+		
+		try {
+			return new PagedRAM(opts.sizeOfRAM, channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+		} finally {
+			channel.close();
+		}
 	}
 	
 	public int getLengthOfRAM() {
-		return randomAccessMemory.length;
+		return randomAccessMemory.capacity();
 	}
 	
 	public void readSegmentOfRAM(byte[] buffer, int bufferOffset, int ramOffset, int length) {
-		for (int i = ramOffset; i < ramOffset + length; i++) {
-			buffer[i - ramOffset + bufferOffset] = randomAccessMemory[i];
-		}
+		randomAccessMemory.get(ramOffset, buffer, bufferOffset, length);
+	}
+	
+	/**
+	 * Returns a copy of the bytes of RAM in [start, end).
+	 */
+	byte[] copyOfRAM(int start, int end) {
+		byte[] copy = new byte[end - start];
+		
+		readSegmentOfRAM(copy, 0, start, copy.length);
+		
+		return copy;
 	}
 	
 	public void copyIntoRAM(int offset, byte[] buffer, int start, int end) {
-		for (int i = start; i < end; i++) {
-			randomAccessMemory[i - start + offset] = buffer[i];
+		if (end > start) {
+			randomAccessMemory.put(offset, buffer, start, end - start);
+			written(offset, end - start);
 		}
 	}
 	
 	public void writeToRAM(int offset, int value) {
+		randomAccessMemory.putInt(offset, value);
+		
+		written(offset, 4);
+		
 		for (MemoryListener listener : memoryListeners) {
 			listener.segmentWrittenTo(this, offset, value);
 		}
-		
-		randomAccessMemory[offset    ] = (byte)((value >>> 24) & 0xff);
-		randomAccessMemory[offset + 1] = (byte)((value >>> 16) & 0xff);
-		randomAccessMemory[offset + 2] = (byte)((value >>> 8) & 0xff);
-		randomAccessMemory[offset + 3] = (byte)((value      ) & 0xff);
+	}
+	
+	/**
+	 * Called after <code>length</code> bytes of RAM at <code>offset</code>
+	 * change, so that code made from them is thrown away.
+	 */
+	void written(int offset, int length) {
+		if (codeCache != null) {
+			codeCache.written(offset, length);
+		}
 	}
 	
 	public int readFromRAM(int offset) {
-		return ((int)(randomAccessMemory[offset    ] & 0xff) << 24) |
-		       ((int)(randomAccessMemory[offset + 1] & 0xff) << 16) |
-		       ((int)(randomAccessMemory[offset + 2] & 0xff) << 8)  |
-		       ((int)(randomAccessMemory[offset + 3] & 0xff)     ) ;
+		return randomAccessMemory.getInt(offset);
 	}
 	
 	public void addMemoryListener(MemoryListener l) {
@@ -75,14 +182,67 @@ public class StaticComputer implements Computer {
 		executionListeners.remove(l);
 	}
 	
-	public void prepareIOSubsystem(IO io) {
+	public synchronized void prepareIOSubsystem(IO io) {
+		this.io = io;
+		
 		for (int port : peripherals.keySet()) {
 			io.addDevice(port, peripherals.get(port));
 		}
 	}
 	
-	public void addPeripheral(int port, IO.Device device) {
-		peripherals.put(port, device);
+	/**
+	 * Plugs <code>device</code> into <code>port</code>, replacing whatever
+	 * was there. Takes effect immediately, even while the machine runs.
+	 */
+	public synchronized void addPeripheral(int port, IO.Device device) {
+		IO.Device previous = peripherals.put(port, device);
+		
+		if (io != null) {
+			if (previous != null) {
+				io.removeDevice(port, previous);
+			}
+			
+			io.addDevice(port, device);
+		}
+	}
+	
+	public synchronized void removePeripheral(int port) {
+		IO.Device previous = peripherals.remove(port);
+		
+		if (io != null && previous != null) {
+			io.removeDevice(port, previous);
+		}
+	}
+	
+	/**
+	 * Replaces the module on bus <code>id</code> with <code>module</code>,
+	 * which has to be an instance of the class registered there, or of a
+	 * subclass that keeps its Intrinsic ports, as compiled code does those
+	 * in-line. Running code switches to it at its next breakpoint or
+	 * backward jump; the old module's state is not carried over.
+	 */
+	public void replaceModule(int id, Object module) {
+		Class<?> klass = OpcodeCollection.instance().getModules()[id];
+		
+		if (klass == null || !klass.isInstance(module)) {
+			throw new IllegalArgumentException("not a module for bus " + id + ": " + module);
+		}
+		
+		for (Method method : klass.getMethods()) {
+			if (method.getAnnotation(Intrinsic.class) == null)
+				continue;
+			
+			try {
+				if (!module.getClass().getMethod(method.getName(), method.getParameterTypes()).equals(method)) {
+					throw new IllegalArgumentException("cannot override intrinsic " + method);
+				}
+			} catch (NoSuchMethodException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		replacedModules.put(id, module);
+		context.interrupted = true;
 	}
 	
 	public synchronized boolean isRunning() {
@@ -92,6 +252,10 @@ public class StaticComputer implements Computer {
 	public synchronized void start() {
 		isRunning = true;
 		
+		if (debuggerAttached) {
+			retire(-1);
+		}
+		
 		for (ExecutionListener l : executionListeners) {
 			l.executionStatusChanged(this);
 		}
@@ -102,12 +266,79 @@ public class StaticComputer implements Computer {
 	public synchronized void stop() {
 		isRunning = false;
 		
+		if (debuggerAttached) {
+			retire(-1);
+		}
+		
 		for (ExecutionListener l : executionListeners) {
 			l.executionStatusChanged(this);
 		}
 	}
 	
-	public synchronized void breakpoint(int position) {
+	public void attachDebugger() {
+		debuggerAttached = true;
+		retire(-1);
+	}
+	
+	public void detachDebugger() {
+		debuggerAttached = false;
+		retire(-1);
+	}
+	
+	public void addBreakpoint(int position) {
+		if (breakpoints.add(position) && debuggerAttached) {
+			retire(position);
+		}
+	}
+	
+	public void removeBreakpoint(int position) {
+		if (breakpoints.remove(position) && debuggerAttached) {
+			retire(position);
+		}
+	}
+	
+	/**
+	 * Whether the instruction at <code>position</code> calls breakpoint
+	 * before it runs.
+	 */
+	public boolean isInstrumented(int position) {
+		if (options.debuggingMode) {
+			return true;
+		} else if (debuggerAttached) {
+			return !isRunning || breakpoints.contains(position);
+		} else {
+			return false;
+		}
+	}
+	
+	/**
+	 * Marks the code at <code>position</code>, or all of it if -1, as
+	 * instrumented wrongly, and interrupts whatever is running so that the
+	 * dispatcher recompiles it.
+	 */
+	private void retire(int position) {
+		staleOffsets.add(position);
+		context.interrupted = true;
+	}
+	
+	/**
+	 * Reports that execution reached <code>position</code>, and waits there
+	 * while the machine is stopped. Returns true if the caller has to leave
+	 * for the dispatcher before running the instruction, because its
+	 * instrumentation changed meanwhile; it is then not reported again when
+	 * execution resumes there.
+	 */
+	public synchronized boolean breakpoint(int position) {
+		if (resumeOffset != -1) {
+			boolean reported = (resumeOffset == position);
+			
+			resumeOffset = -1;
+			
+			if (reported) {
+				return false;
+			}
+		}
+		
 		try {
 			currentOffset = position;
 			
@@ -119,6 +350,14 @@ public class StaticComputer implements Computer {
 				wait();
 			}
 		} catch (InterruptedException e) { throw new RuntimeException(e); }
+		
+		if (context.interrupted) {
+			resumeOffset = position;
+			
+			return true;
+		} else {
+			return false;
+		}
 	}
 	
 	public int getProgramCounter() {
@@ -129,25 +368,78 @@ public class StaticComputer implements Computer {
 		notifyAll();
 	}
 	
-	public void execute() {
-		long recompileStart = System.nanoTime();
-		
-		JITMemorySegment seg = RuntimeCompiler.recompile(OpcodeCollection.instance(),
-		  randomAccessMemory, 0, randomAccessMemory.length);
+	void replaceModules() {
+		for (int id : replacedModules.keySet()) {
+			context.setModule(id, replacedModules.remove(id));
+		}
+	}
+	
+	private synchronized void recompileStaleCode(CodeCache cache) {
+		Integer position;
 		
-		long recompileEnd = System.nanoTime();
+		while ((position = staleOffsets.poll()) != null) {
+			if (position == -1) {
+				cache.recompileAll();
+			} else {
+				cache.recompile(position);
+			}
+		}
 		
-		System.err.println("Recompilation took: " + (recompileEnd - recompileStart) + "ns");
+		if (resumeOffset != -1 && !isInstrumented(resumeOffset)) {
+			resumeOffset = -1;
+		}
+	}
+	
+	public void execute() {
+		OpcodeCollection collect = OpcodeCollection.instance();
+		CodeCache cache = new CodeCache(this, collect, context, options);
+		Interpreter interpreter = new Interpreter(this, collect, context, options);
 		
-		seg.setComputer(this);
+		codeCache = cache;
 		
 		long start = System.currentTimeMillis();
 		
 		try {
-			seg.executeSafely(1);
+			int offset = 0;
+			JITMemorySegment segment = null; // the segment that ran last, if any.
+			
+			while (true) {
+				if (context.interrupted) {
+					context.interrupted = false;
+					
+					replaceModules();
+					recompileStaleCode(cache);
+					segment = null;
+				}
+				
+				JITMemorySegment next = (segment != null) ? segment.getLink(offset) : null;
+				
+				if (next == null) {
+					CodeCache.Block block = cache.lookup(offset);
+					
+					next = block.segment;
+					
+					if (next == null) {
+						cache.reached(offset, null);
+						offset = interpreter.interpret(block.start, block.end);
+						segment = null;
+						
+						continue;
+					} else if (segment != null) {
+						segment.link(offset, next);
+					}
+				}
+				
+				cache.reached(offset, next);
+				segment = next;
+				offset = segment.execute(offset);
+			}
 		} finally {
 			long end = System.currentTimeMillis();
 			
+			cache.shutdown();
+			
+			System.err.println("Recompilation took: " + cache.getCompilationTime() + "ns");
 			System.err.println("Execution took: " + (end - start) + "ns");
 		}
 	}
@@ -0,0 +1,271 @@
+package magarathea;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A machine that only ever interprets, for when generating classes is
+ * unwanted or its pauses are; it otherwise behaves as StaticComputer,
+ * debugger, peripherals and module swaps included.
+ * 
+ * Each instruction is decoded once, the first time it runs, into an entry
+ * of <code>reads</code> and one of <code>writes</code>: a literal, a jump,
+ * or the index of a Port, which calls the module through a MethodHandle.
+ * Execution then only dispatches on those. Writing to RAM throws the
+ * entries for the changed instructions away. Like RAM, the entries are
+ * kept by page, and only for pages that have run. Instructions are always
+ * eight bytes apart, so a jump to an address that is not a multiple of
+ * eight is an invalid instruction.
+ */
+public class ThreadedComputer extends StaticComputer {
+	private static final MethodType READ = MethodType.methodType(int.class, Object.class);
+	private static final MethodType WRITE = MethodType.methodType(void.class, Object.class, int.class);
+	
+	/**
+	 * What <code>writes</code> holds for jumps; ports are numbered after
+	 * them. Zero, in either array, is an instruction not decoded yet.
+	 */
+	private static final int BRANCH = 1, NONNEG = 2, ZERO = 3, PORTS = 4;
+	
+	private static final int SLOTS = PagedRAM.PAGE_SIZE / 8;
+	
+	/**
+	 * A read or write port of a module, as it is called.
+	 */
+	private static class Port {
+		private final int module;
+		private final MethodHandle handle;
+		
+		public Port(int module, MethodHandle handle) {
+			this.module = module;
+			this.handle = handle;
+		}
+		
+		public int read(MachineContext context) {
+			try {
+				return (int)handle.invokeExact(context.getModule(module));
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new RuntimeException(t);
+			}
+		}
+		
+		public void write(MachineContext context, int value) {
+			try {
+				handle.invokeExact(context.getModule(module), value);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new RuntimeException(t);
+			}
+		}
+	}
+	
+	private OpcodeCollection collect;
+	private int[][] reads;  // 1 + a literal, or -1 - a port
+	private int[][] writes; // a jump, or PORTS + a port
+	private Port[] ports;
+	private HashMap<OpcodeCollection.Output, Integer> portIndexes;
+	
+	public ThreadedComputer(byte[] assembledCode) {
+		this(assembledCode, new RuntimeCompiler.Options());
+	}
+	
+	public ThreadedComputer(byte[] assembledCode, RuntimeCompiler.Options opts) {
+		super(assembledCode, opts);
+	}
+	
+	public ThreadedComputer(File image, RuntimeCompiler.Options opts) throws IOException {
+		super(image, opts);
+	}
+	
+	void written(int offset, int length) {
+		int[][] r = reads, w = writes; // null until the machine runs.
+		
+		if (r != null) {
+			for (int slot = offset >> 3; slot <= (offset + length - 1) >> 3; slot++) {
+				int page = slot / SLOTS;
+				
+				if (r[page] != null) {
+					r[page][slot % SLOTS] = 0;
+					w[page][slot % SLOTS] = 0;
+				}
+			}
+		}
+	}
+	
+	private int portFor(OpcodeCollection.Output output, int module, boolean read) {
+		Integer index = portIndexes.get(output);
+		
+		if (index == null) {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			MethodHandle handle;
+			
+			try {
+				if (output.isField()) {
+					handle = read ? lookup.unreflectGetter(output.field) : lookup.unreflectSetter(output.field);
+				} else {
+					handle = lookup.unreflect(output.method);
+				}
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+			
+			index = portIndexes.size();
+			
+			if (index == ports.length) {
+				ports = Arrays.copyOf(ports, index * 2);
+			}
+			
+			ports[index] = new Port(module, handle.asType(read ? READ : WRITE));
+			portIndexes.put(output, index);
+		}
+		
+		return index;
+	}
+	
+	/**
+	 * Decodes the instruction at <code>offset</code> into its slot, making
+	 * room for its page first if need be.
+	 */
+	private void decode(int offset) {
+		int page = offset >>> PagedRAM.PAGE_SHIFT;
+		int slot = (offset >> 3) % SLOTS;
+		
+		if (reads[page] == null) {
+			writes[page] = new int[SLOTS];
+			reads[page] = new int[SLOTS]; // last; see written.
+		}
+		
+		int even = readFromRAM(offset);
+		int odd = readFromRAM(offset + 4);
+		
+		if (!RuntimeCompiler.decodes(collect, even, odd)) {
+			throw new RuntimeException("invalid instruction at " + offset);
+		}
+		
+		int write;
+		
+		if (odd == 0x90000000) {
+			write = BRANCH;
+		} else if (odd == 0x90000001) {
+			write = NONNEG;
+		} else if (odd == 0x90000002) {
+			write = ZERO;
+		} else {
+			write = PORTS + portFor(collect.getRightHandSide(odd), odd >>> 24, false);
+		}
+		
+		if ((even & 0xff000000) == 0x11000000) {
+			reads[page][slot] = 1 + (even & 0x00ffffff);
+		} else {
+			reads[page][slot] = -1 - portFor(collect.getLeftHandSide(even), even >>> 24, true);
+		}
+		
+		writes[page][slot] = write;
+	}
+	
+	/**
+	 * Runs from <code>offset</code> until the machine is interrupted, and
+	 * returns where to go on. Breakpoints are only checked for if the
+	 * machine could have any when it starts.
+	 */
+	private int run(int offset) {
+		boolean watched = options.debuggingMode || debuggerAttached;
+		int condition = context.condition;
+		int limit = getLengthOfRAM() & ~7;
+		
+		try {
+			while (true) {
+				if ((offset & 7) != 0 || offset < 0 || offset >= limit) {
+					throw new RuntimeException("invalid instruction at " + offset);
+				}
+				
+				if (watched && isInstrumented(offset) && breakpoint(offset)) {
+					return offset;
+				}
+				
+				int page = offset >>> PagedRAM.PAGE_SHIFT;
+				int slot = (offset >> 3) % SLOTS;
+				int[] r = reads[page];
+				int read = (r != null) ? r[slot] : 0;
+				int write = (r != null) ? writes[page][slot] : 0;
+				
+				if (read == 0 || write == 0) {
+					decode(offset);
+					
+					read = reads[page][slot];
+					write = writes[page][slot];
+				}
+				
+				int value = (read > 0) ? read - 1 : ports[-1 - read].read(context);
+				
+				switch (write) {
+				case BRANCH:
+					if (condition == 0) {
+						offset = value;
+						
+						// the only way to loop, so the only place to stop.
+						if (context.interrupted) {
+							return offset;
+						}
+						
+						continue;
+					}
+					break;
+				case NONNEG:
+					condition = value & (1 << 31);
+					break;
+				case ZERO:
+					condition = value;
+					break;
+				default:
+					ports[write - PORTS].write(context, value);
+				}
+				
+				offset += 8;
+			}
+		} finally {
+			context.condition = condition;
+		}
+	}
+	
+	private synchronized void discardStaleCode() {
+		// nothing is compiled, so instrumentation never goes stale.
+		staleOffsets.clear();
+		
+		if (resumeOffset != -1 && !isInstrumented(resumeOffset)) {
+			resumeOffset = -1;
+		}
+	}
+	
+	public void execute() {
+		collect = OpcodeCollection.instance();
+		ports = new Port[16];
+		portIndexes = new HashMap<OpcodeCollection.Output, Integer>();
+		
+		int pages = (getLengthOfRAM() + PagedRAM.PAGE_SIZE - 1) >>> PagedRAM.PAGE_SHIFT;
+		
+		writes = new int[pages][];
+		reads = new int[pages][]; // last; see written.
+		
+		int offset = 0;
+		
+		while (true) {
+			if (context.interrupted) {
+				context.interrupted = false;
+				
+				replaceModules();
+				discardStaleCode();
+			}
+			
+			offset = run(offset);
+		}
+	}
+}
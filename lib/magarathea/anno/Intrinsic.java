@@ -0,0 +1,25 @@
+package magarathea.anno;
+
+import java.lang.annotation.*;
+
+/**
+ * Describes what a port method does in terms of the int fields of its own
+ * module, so that compiled code can do it in-line instead of calling the
+ * method. The method must do exactly this and nothing else; it is still
+ * what the interpreter calls.
+ * 
+ * On a read port, <code>int m()</code>, the port returns
+ * <code>field</code>. On a write port, <code>void m(int value)</code>, it
+ * stores <code>operand OP value</code> into <code>field</code>, where
+ * <code>operand</code> defaults to <code>field</code> itself.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+@Documented
+public @interface Intrinsic {
+	public static enum Operation { COPY, ADD, SUBTRACT, AND, OR, XOR, LSHIFT, RSHIFT }
+	
+	String field();
+	Operation operation() default Operation.COPY;
+	String operand() default "";
+}
\ No newline at end of file
@@ -0,0 +1,28 @@
+import java.io.File;
+
+import magarathea.RuntimeCompiler;
+import magarathea.StaticComputer;
+import magarathea.ThreadedComputer;
+
+/**
+ * Runs a program image on StaticComputer or on ThreadedComputer; see
+ * test/compare. StaticComputer compiles a block once it has been
+ * interpreted twice, so that both of its tiers run.
+ */
+public class Compare {
+	public static void main(String[] args) throws Exception {
+		File image = new File(args[1]);
+		RuntimeCompiler.Options options = new RuntimeCompiler.Options();
+		StaticComputer computer;
+		
+		if (args[0].equals("threaded")) {
+			computer = new ThreadedComputer(image, options);
+		} else {
+			options.compileThreshold = 2;
+			computer = new StaticComputer(image, options);
+		}
+		
+		computer.start();
+		computer.execute();
+	}
+}